@@ -3,8 +3,9 @@
  */
 
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class Acceptor {
@@ -13,11 +14,33 @@ public class Acceptor {
 
     private Map<Integer, AcceptorStore> logIdToStoreMap;
     private int nodeId;
+    private boolean witness;
+    private int maxAcceptedLogId;
+
+    /* Read lease granted by this acceptor */
+    private int leaseHolder;
+    private long leaseExpiry;
+    private long noGrantUntil;
 
     /* Constructor */
     public Acceptor(int node_id) {
-        logIdToStoreMap = new HashMap<>();
+        this(node_id, false);
+    }
+
+    /**
+     * Constructor
+     * @param node_id
+     * @param is_witness a witness only stores digest-only values
+     */
+    public Acceptor(int node_id, boolean is_witness) {
+        /* Also read by the revoker and recovery threads */
+        logIdToStoreMap = new ConcurrentHashMap<>();
         nodeId = node_id;
+        witness = is_witness;
+        maxAcceptedLogId = Constants.NULL_ID;
+        leaseHolder = Constants.NULL_ID;
+        leaseExpiry = 0;
+        noGrantUntil = 0;
         LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
     }
 
@@ -48,8 +71,9 @@ public class Acceptor {
 
         PaxosMessage promiseMsg = new PaxosMessage(PaxosMessageType.PROMISE,
                 pId, msg.getLogId(), acceptedId, nodeId, acceptedER);
+        promiseMsg.setNamespace(msg.getNamespace());
         int proposerId = msg.getNodeId();
-        NodeAddress proposerAddr = Constants.NODEID_ADDR_MAP.get(proposerId);
+        NodeAddress proposerAddr = Membership.addressOf(proposerId);
         LG.info("Sending out promise msg for pId " + pId);
         promiseMsg.sendToAddr(proposerAddr.getIp(), proposerAddr.getPort());
     }
@@ -72,19 +96,96 @@ public class Acceptor {
             LG.info("Reject propose msg, pId = " + msgPId);
             return;
         }
+        if (isLeasedToOther(msg.getNodeId())) {
+            /* Revoke: stop renewing so the proposer succeeds on retry */
+            LG.info("Reject propose msg during read lease, pId = " + msgPId);
+            noGrantUntil = leaseExpiry +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            return;
+        }
+        if (witness && msg.getER() != null &&
+                msg.getER().getAppointment() != null) {
+            LG.warning("Witness rejects propose with payload, pId = " +
+                    msgPId);
+            return;
+        }
+        if (!logIdToStoreMap.containsKey(logId)) {
+            logIdToStoreMap.put(logId, new AcceptorStore());
+        }
 
         logIdToStoreMap.get(logId).acceptedId = msgPId;
         logIdToStoreMap.get(logId).promisedId = msgPId;
-        logIdToStoreMap.get(logId).acceptedER = msg.getER();
+        EventRecord value = msg.getER();
+        if (value != null && value.getDigest() != null &&
+                !value.isDigestOnly()) {
+            /* The payload has been stored, only its digest is agreed on */
+            value = EventRecord.digestOnly(value, value.getERNodeId());
+        }
+        logIdToStoreMap.get(logId).acceptedER = value;
+        maxAcceptedLogId = Math.max(maxAcceptedLogId, logId);
 
+        /* The proposer knows the value, only the ballot is sent back */
         PaxosMessage acceptMsg = new PaxosMessage(PaxosMessageType.ACCEPT,
-                msgPId, msg.getLogId(), msgPId, nodeId, msg.getER());
+                msgPId, msg.getLogId(), msgPId, nodeId, null);
+        acceptMsg.setNamespace(msg.getNamespace());
         int proposerId = msg.getNodeId();
-        NodeAddress proposerAddr = Constants.NODEID_ADDR_MAP.get(proposerId);
+        NodeAddress proposerAddr = Membership.addressOf(proposerId);
         LG.info("Sending accept msg");
         acceptMsg.sendToAddr(proposerAddr.getIp(), proposerAddr.getPort());
     }
 
+    /**
+     * handleLeaseRequest: grant a read lease to the requester unless an
+     * unexpired lease is held by another node or the lease has been revoked.
+     * The grant carries the highest log id this acceptor has accepted.
+     * @param msg
+     */
+    public void handleLeaseRequest(PaxosMessage msg) {
+        int requester = msg.getNodeId();
+        long now = System.currentTimeMillis();
+        if (isLeasedToOther(requester) || now < noGrantUntil) {
+            LG.info("Refuse read lease to " + requester);
+            return;
+        }
+        leaseHolder = requester;
+        leaseExpiry = now + Constants.LEASE_DURATION;
+
+        PaxosMessage grantMsg = new PaxosMessage(PaxosMessageType.LEASE_GRANT,
+                msg.getPId(), -1, maxAcceptedLogId, nodeId, null);
+        grantMsg.setNamespace(msg.getNamespace());
+        NodeAddress addr = Membership.addressOf(requester);
+        grantMsg.sendToAddr(addr.getIp(), addr.getPort());
+    }
+
+    /**
+     * handleReadIndexRequest: reply with the highest log id this acceptor
+     * has accepted
+     * @param msg
+     */
+    public void handleReadIndexRequest(PaxosMessage msg) {
+        PaxosMessage replyMsg = new PaxosMessage(
+                PaxosMessageType.READ_INDEX_REPLY, msg.getPId(), -1,
+                maxAcceptedLogId, nodeId, null);
+        replyMsg.setNamespace(msg.getNamespace());
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
+        replyMsg.sendToAddr(addr.getIp(), addr.getPort());
+    }
+
+    /**
+     * getPromisedId: highest ballot this acceptor has promised for logId
+     * @param logId
+     * @return -1 if it has promised none
+     */
+    public int getPromisedId(int logId) {
+        AcceptorStore as = logIdToStoreMap.get(logId);
+        return as == null ? -1 : as.promisedId;
+    }
+
+    private boolean isLeasedToOther(int proposerId) {
+        return leaseHolder != Constants.NULL_ID && leaseHolder != proposerId &&
+                System.currentTimeMillis() < leaseExpiry;
+    }
+
     private class AcceptorStore {
         private int promisedId;
         private int acceptedId;
@@ -0,0 +1,164 @@
+/**
+ * ApplyEngine class: applies a batch of committed EventRecords to a timetable
+ * and appointment map. Events are grouped into levels of a dependency graph
+ * built from their (participant, day) footprints: an event depends on the last
+ * earlier event that touches any of its participant days. Events in the same
+ * level have disjoint footprints and are applied in parallel on a fork-join
+ * pool. The result is identical to applying the batch serially in log order.
+ */
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ApplyEngine {
+    /* Shared by the engines of all namespaces hosted in the process */
+    private static final ForkJoinPool POOL =
+            new ForkJoinPool(Constants.APPLY_PARALLELISM);
+
+    /**
+     * apply: apply events in log order semantics to timetable and apptIdMap
+     * @param committed committed events, in log order. No-ops are skipped.
+     * @param timetable
+     * @param apptIdMap
+     * @return ids of the participants whose timetable has been touched
+     */
+    public Set<Integer> apply(List<EventRecord> committed,
+                              String[][][] timetable,
+                              Map<String, Appointment> apptIdMap) {
+        List<EventRecord> events = new ArrayList<>();
+        Set<Integer> touched = new HashSet<>();
+        for (EventRecord er: committed) {
+            if (er.getOperation() == EventOperation.NOOP ||
+                    er.getOperation() == EventOperation.RECONFIGURE) {
+                continue;
+            }
+            events.add(er);
+            touched.addAll(er.getAppointment().getParticipantsId());
+        }
+
+        if (events.size() < Constants.PARALLEL_APPLY_MIN_BATCH) {
+            for (EventRecord er: events) {
+                applySlots(er, timetable);
+            }
+        } else {
+            for (List<EventRecord> level: buildLevels(events)) {
+                if (level.size() == 1) {
+                    applySlots(level.get(0), timetable);
+                } else {
+                    POOL.invoke(new ApplyLevelTask(level, timetable, 0,
+                            level.size()));
+                }
+            }
+        }
+
+        /* Map updates are keyed by appointment id, replay them in log order */
+        for (EventRecord er: events) {
+            Appointment appt = er.getAppointment();
+            switch (er.getOperation()) {
+                case ADD:
+                    apptIdMap.put(appt.getId(), appt);
+                    break;
+                case DELETE:
+                    apptIdMap.remove(appt.getId());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return touched;
+    }
+
+    /**
+     * buildLevels: split events into levels so that every event comes after
+     * all earlier events sharing a (participant, day) with it
+     * @param events
+     * @return
+     */
+    private List<List<EventRecord>> buildLevels(List<EventRecord> events) {
+        List<List<EventRecord>> levels = new ArrayList<>();
+        Map<Integer, Integer> lastLevelByKey = new HashMap<>();
+        for (EventRecord er: events) {
+            Appointment appt = er.getAppointment();
+            int level = 0;
+            for (Integer p: appt.getParticipantsId()) {
+                Integer prev = lastLevelByKey.get(footprintKey(p,
+                        appt.getDay()));
+                if (prev != null) {
+                    level = Math.max(level, prev + 1);
+                }
+            }
+            for (Integer p: appt.getParticipantsId()) {
+                lastLevelByKey.put(footprintKey(p, appt.getDay()), level);
+            }
+            if (levels.size() == level) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(level).add(er);
+        }
+        return levels;
+    }
+
+    /** Helper functions **/
+
+    private static int footprintKey(int participant, int day) {
+        return participant * Constants.TOTAL_DAY + day;
+    }
+
+    /**
+     * applySlots: write the timetable cells of given event
+     * @param er
+     * @param timetable
+     */
+    private static void applySlots(EventRecord er, String[][][] timetable) {
+        Appointment appt = er.getAppointment();
+        String value;
+        switch (er.getOperation()) {
+            case ADD:
+                value = appt.getId();
+                break;
+            case DELETE:
+                value = null;
+                break;
+            default:
+                return;
+        }
+        int day = appt.getDay();
+        for (Integer p: appt.getParticipantsId()) {
+            for (int i = appt.getStartTime(); i <= appt.getEndTime(); ++i) {
+                timetable[p][day][i] = value;
+            }
+        }
+    }
+
+    private static class ApplyLevelTask extends RecursiveAction {
+        /* Never serialized, RecursiveAction is Serializable */
+        private static final long serialVersionUID = 1L;
+
+        private final List<EventRecord> level;
+        private final String[][][] timetable;
+        private final int from;
+        private final int to;
+
+        /* Constructor */
+        public ApplyLevelTask(List<EventRecord> l, String[][][] table,
+                              int f, int t) {
+            level = l;
+            timetable = table;
+            from = f;
+            to = t;
+        }
+
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; ++i) {
+                    applySlots(level.get(i), timetable);
+                }
+                return;
+            }
+            int mid = (from + to) / 2;
+            invokeAll(new ApplyLevelTask(level, timetable, from, mid),
+                    new ApplyLevelTask(level, timetable, mid, to));
+        }
+    }
+}
@@ -62,4 +62,25 @@ public class Appointment implements Serializable {
     }
 
     public ArrayList<Integer> getParticipantsId() { return participantsId; }
+
+    public int getInitNode() { return initNode; }
+
+    /**
+     * overlaps: whether this and other share a participant and a time slot,
+     * both ends of the time range being inclusive
+     * @param other
+     * @return
+     */
+    public boolean overlaps(Appointment other) {
+        if (other.day != day || other.endTime < startTime ||
+                endTime < other.startTime) {
+            return false;
+        }
+        for (Integer p: participantsId) {
+            if (other.participantsId.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
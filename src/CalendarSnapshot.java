@@ -0,0 +1,98 @@
+/**
+ * CalendarSnapshot class: an immutable version of the Paxos calendar tagged
+ * with the log id of the last applied event. Readers grab the current
+ * snapshot without locking; the learner publishes a new version after each
+ * applied event.
+ */
+
+import java.util.*;
+
+public class CalendarSnapshot {
+    private final int appliedLogId;
+    private final Map<String, Appointment> apptIdMap;
+    private final String[][][] timetable;
+
+    /* Constructor */
+    private CalendarSnapshot(int applied_log_id,
+                             Map<String, Appointment> appt_id_map,
+                             String[][][] table) {
+        appliedLogId = applied_log_id;
+        apptIdMap = Collections.unmodifiableMap(appt_id_map);
+        timetable = table;
+    }
+
+    /**
+     * of: build a snapshot by deep copying the given live structures
+     * @param logId id of the last applied log line, -1 if none
+     * @param liveApptIdMap
+     * @param liveTimetable
+     * @return
+     */
+    public static CalendarSnapshot of(int logId,
+                                      Map<String, Appointment> liveApptIdMap,
+                                      String[][][] liveTimetable) {
+        String[][][] table = new String[liveTimetable.length][][];
+        for (int p = 0; p < liveTimetable.length; ++p) {
+            table[p] = copyParticipant(liveTimetable[p]);
+        }
+        return new CalendarSnapshot(logId, new HashMap<>(liveApptIdMap),
+                table);
+    }
+
+    /**
+     * next: build the next version after an event has been applied to the
+     * live structures. Only the timetables of the touched participants are
+     * copied, the others are shared with this version.
+     * @param logId id of the applied log line
+     * @param liveApptIdMap
+     * @param liveTimetable
+     * @param touched participants whose timetable changed
+     * @return
+     */
+    public CalendarSnapshot next(int logId,
+                                 Map<String, Appointment> liveApptIdMap,
+                                 String[][][] liveTimetable,
+                                 Collection<Integer> touched) {
+        String[][][] table = timetable.clone();
+        for (Integer p: touched) {
+            table[p] = copyParticipant(liveTimetable[p]);
+        }
+        return new CalendarSnapshot(Math.max(logId, appliedLogId),
+                new HashMap<>(liveApptIdMap), table);
+    }
+
+    /* Getters */
+    public int getAppliedLogId() {
+        return appliedLogId;
+    }
+
+    public Map<String, Appointment> getApptIdMap() {
+        return apptIdMap;
+    }
+
+    public Appointment getAppointment(String apptId) {
+        return apptIdMap.get(apptId);
+    }
+
+    public String getSlot(int participant, int day, int slot) {
+        return timetable[participant][day][slot];
+    }
+
+    /**
+     * getTimetable: the returned arrays are shared between versions and
+     * must not be modified by the caller
+     * @return
+     */
+    public String[][][] getTimetable() {
+        return timetable;
+    }
+
+    /** Helper functions **/
+    private static String[][] copyParticipant(String[][] days) {
+        String[][] copy = new String[days.length][];
+        for (int d = 0; d < days.length; ++d) {
+            copy[d] = days[d].clone();
+        }
+        return copy;
+    }
+}
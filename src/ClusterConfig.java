@@ -0,0 +1,129 @@
+/**
+ * ClusterConfig class: an immutable Paxos cluster configuration. Voters are
+ * the acceptors whose replies count toward the quorum, learners are members
+ * that receive the committed log while catching up, before they are
+ * promoted to voters.
+ */
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ClusterConfig implements Serializable {
+    /* The computed default, RECONFIGURE events already logged stay readable */
+    private static final long serialVersionUID = 6779927696597451851L;
+
+    private final TreeMap<Integer, NodeAddress> voters;
+    private final TreeMap<Integer, NodeAddress> learners;
+
+    /* Constructor */
+    public ClusterConfig(Map<Integer, NodeAddress> voter_map,
+                         Map<Integer, NodeAddress> learner_map) {
+        voters = new TreeMap<>(voter_map);
+        learners = new TreeMap<>(learner_map);
+    }
+
+    /* Getters */
+    public Map<Integer, NodeAddress> getVoters() {
+        return Collections.unmodifiableMap(voters);
+    }
+
+    public Map<Integer, NodeAddress> getLearners() {
+        return Collections.unmodifiableMap(learners);
+    }
+
+    public int getMajority() {
+        return voters.size() / 2 + 1;
+    }
+
+    /**
+     * getPhase1Quorum: promises needed to prepare, also the replies needed
+     * for a read lease or a read index, which must see every accepted value
+     * @return
+     */
+    public int getPhase1Quorum() {
+        return Constants.PHASE1_QUORUM_SIZE > 0 ?
+                Constants.PHASE1_QUORUM_SIZE : getMajority();
+    }
+
+    /**
+     * getPhase2Quorum: accepts needed to choose a value
+     * @return
+     */
+    public int getPhase2Quorum() {
+        return Constants.PHASE2_QUORUM_SIZE > 0 ?
+                Constants.PHASE2_QUORUM_SIZE : getMajority();
+    }
+
+    /**
+     * quorumError: phase-1 and phase-2 quorums must fit in the voters and
+     * every pair of them must intersect
+     * @return error message, or null if the quorums are valid
+     */
+    public String quorumError() {
+        int q1 = getPhase1Quorum();
+        int q2 = getPhase2Quorum();
+        if (q1 > voters.size() || q2 > voters.size()) {
+            return "Quorum sizes " + q1 + "/" + q2 + " exceed " +
+                    voters.size() + " voters";
+        }
+        if (q1 + q2 <= voters.size()) {
+            return "Quorum sizes " + q1 + "/" + q2 + " do not intersect " +
+                    "with " + voters.size() + " voters";
+        }
+        return null;
+    }
+
+    public boolean isVoter(int nodeId) {
+        return voters.containsKey(nodeId);
+    }
+
+    public boolean isLearner(int nodeId) {
+        return learners.containsKey(nodeId);
+    }
+
+    public NodeAddress addressOf(int nodeId) {
+        NodeAddress addr = voters.get(nodeId);
+        return addr != null ? addr : learners.get(nodeId);
+    }
+
+    /**
+     * withLearner: configuration with nodeId added as a learner
+     * @param nodeId
+     * @param addr
+     * @return
+     */
+    public ClusterConfig withLearner(int nodeId, NodeAddress addr) {
+        ClusterConfig result = new ClusterConfig(voters, learners);
+        result.learners.put(nodeId, addr);
+        return result;
+    }
+
+    /**
+     * promote: configuration with learner nodeId turned into a voter
+     * @param nodeId
+     * @return
+     */
+    public ClusterConfig promote(int nodeId) {
+        ClusterConfig result = new ClusterConfig(voters, learners);
+        result.voters.put(nodeId, result.learners.remove(nodeId));
+        return result;
+    }
+
+    /**
+     * without: configuration with nodeId removed, whether voter or learner
+     * @param nodeId
+     * @return
+     */
+    public ClusterConfig without(int nodeId) {
+        ClusterConfig result = new ClusterConfig(voters, learners);
+        result.voters.remove(nodeId);
+        result.learners.remove(nodeId);
+        return result;
+    }
+
+    public String toString() {
+        return "voters " + voters.keySet() + ", learners " + learners.keySet();
+    }
+}
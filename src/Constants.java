@@ -4,11 +4,14 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import static java.util.Map.entry;
 import java.util.logging.Level;
 
 public class Constants {
+    /* Initial Paxos voters, later changes are committed through the log */
     public static final Map<Integer, NodeAddress> NODEID_ADDR_MAP =
             Map.ofEntries(
                     entry(0, new NodeAddress("Localhost", 5001)),
@@ -51,9 +54,52 @@ public class Constants {
 
     public static final String START_DATE_CALENDAR = "20190301";
 
+    /* Non-voting learner replicas, ids must not overlap NODEID_ADDR_MAP */
+    public static final Map<Integer, NodeAddress> REPLICA_ADDR_MAP = Map.of();
+    // e.g. Map.of(100, new NodeAddress("Localhost", 5101))
+
     public static final int NODE_COUNT = NODEID_ADDR_MAP.size();
     public static final int MAJORITY_COUNT = NODE_COUNT / 2 + 1;
 
+    /*
+     * Paxos groups by participant-id range: shard s orders the appointments
+     * of participants [s * SHARD_RANGE_SIZE, (s + 1) * SHARD_RANGE_SIZE) and
+     * runs on SHARD_ADDR_MAPS.get(s). Shard 0 runs on NODEID_ADDR_MAP.
+     */
+    public static final List<Map<Integer, NodeAddress>> SHARD_ADDR_MAPS =
+            List.of(NODEID_ADDR_MAP);
+    // e.g. List.of(NODEID_ADDR_MAP, Map.ofEntries(
+    //         entry(0, new NodeAddress("Localhost", 5011)),
+    //         entry(1, new NodeAddress("Localhost", 5012)),
+    //         entry(2, new NodeAddress("Localhost", 5013))))
+    public static final int SHARD_COUNT = SHARD_ADDR_MAPS.size();
+    public static final int SHARD_RANGE_SIZE =
+            (NODE_COUNT + SHARD_COUNT - 1) / SHARD_COUNT;
+
+    public static int shardOf(int participant) {
+        return participant / SHARD_RANGE_SIZE;
+    }
+    /* A cross-shard prepare left without outcome asks its coordinator */
+    public static final int SHARD_IN_DOUBT_TIMEOUT = 10000;  // Milliseconds
+    public static final int SHARD_RECOVERY_INTERVAL = 1000;  // Milliseconds
+
+    /*
+     * Independent calendars hosted by every Paxos process. They share the
+     * listen port and the peers, each has its own log, acceptor state and
+     * timetable.
+     */
+    public static final String DEFAULT_NAMESPACE = "default";
+    public static final List<String> NAMESPACES = List.of(DEFAULT_NAMESPACE);
+    // e.g. List.of(DEFAULT_NAMESPACE, "sales", "support")
+
+    /*
+     * Flexible Paxos quorum sizes, 0 means a majority of the voters. Every
+     * phase-1 quorum must intersect every phase-2 quorum, so
+     * PHASE1_QUORUM_SIZE + PHASE2_QUORUM_SIZE must exceed the voter count.
+     */
+    public static final int PHASE1_QUORUM_SIZE = 0;
+    public static final int PHASE2_QUORUM_SIZE = 0;
+
     public static final String CALENDAR_FILENAME = "calendar.ser";
     public static final String EVENTRECORD_FILENAME = "log.ser";
     public static final int TOTAL_DAY = 7;
@@ -65,6 +111,119 @@ public class Constants {
 
     public static final int MISSING_EVENT_BATCH_SIZE = 10;
     public static final int SLEEP_LENGTH = 5000;    // Milliseconds
+    public static final int REPAIR_INITIAL_BACKOFF = 200;   // Milliseconds
+    public static final int REPAIR_MAX_BACKOFF = 5000;  // Milliseconds
+
+    /* Links to the peer listen ports, shared by all namespaces */
+    public static final int PEER_BATCH_SIZE = 64;
+    public static final int PEER_RECONNECT_INTERVAL = 200;  // Milliseconds
+
+    public static final int APPLY_PARALLELISM =
+            Runtime.getRuntime().availableProcessors();
+    public static final int PARALLEL_APPLY_MIN_BATCH = 8;
+
+    /* Node that keeps the read lease, -1 disables leases (read index only) */
+    public static final int READ_LEASE_NODE_ID = -1;
+    public static final int LEASE_DURATION = 2000;  // Milliseconds
+    public static final int LEASE_CLOCK_DRIFT = 200;    // Milliseconds
+    public static final int READ_POLL_INTERVAL = 10;    // Milliseconds
+    /* A read recovers a slot that stays unlearned this long */
+    public static final int READ_RECOVERY_TIMEOUT = 1000;   // Milliseconds
+
+    /* Mencius-style log slots owned round-robin by node id */
+    public static final boolean ROTATING_SLOTS_ENABLED = false;
+    public static final int REVOKE_TIMEOUT = 3000;  // Milliseconds
+
+    /* EPaxos-style fast path for non-interfering appointments */
+    public static final boolean GENERALIZED_COMMIT_ENABLED = false;
+    public static final int INSTANCE_RETENTION = 15000; // Milliseconds
+    public static final String FAST_COMMIT_FILENAME = "fast.ser";
+
+    /* Adds are shown as pending right away and committed in background */
+    public static final boolean SPECULATIVE_APPLY_ENABLED = false;
+
+    /*
+     * Solo appointments (this node is the only participant) commit locally
+     * and replicate lazily through the Wuu-Bernstein log, the others go
+     * through Paxos
+     */
+    public static final boolean HYBRID_ROUTING_ENABLED = false;
+
+    /* Wuu-Bernstein journal deltas between two state checkpoints */
+    public static final int WUU_CHECKPOINT_INTERVAL = 100;
+    /* Retry of a checkpoint after the journal could not be written */
+    public static final int WUU_JOURNAL_RETRY_INTERVAL = 1000;  // Milliseconds
+
+    /* Backoff of a Wuu-Bernstein node reconnecting to a peer */
+    public static final int WUU_RECONNECT_INITIAL_BACKOFF = 200;    // Milliseconds
+    public static final int WUU_RECONNECT_MAX_BACKOFF = 10000;  // Milliseconds
+
+    /*
+     * Wuu-Bernstein push-pull gossip: every interval, exchange <NP, T> with
+     * FANOUT random peers. 0 disables it.
+     */
+    public static final int WUU_GOSSIP_INTERVAL = 1000; // Milliseconds
+    public static final int WUU_GOSSIP_FANOUT = 2;
+
+    /* Period of Wuu-Bernstein anti-entropy digests, 0 disables them */
+    public static final int WUU_ANTI_ENTROPY_INTERVAL = 5000;   // Milliseconds
+
+    /*
+     * SWIM-style failure detector: every period, ping one member over UDP
+     * on its node port. Without an ack within PING_TIMEOUT, ask
+     * INDIRECT_PROBES other members to ping it. A member that stays silent
+     * for the period is suspect, and dead after SUSPICION_TIMEOUT. Dead
+     * members are sent to last and picked last by gossip, never skipped.
+     */
+    public static final boolean FAILURE_DETECTOR_ENABLED = false;
+    public static final int SWIM_PROTOCOL_PERIOD = 1000;    // Milliseconds
+    public static final int SWIM_PING_TIMEOUT = 200;    // Milliseconds
+    public static final int SWIM_INDIRECT_PROBES = 2;
+    public static final int SWIM_SUSPICION_TIMEOUT = 3000;  // Milliseconds
+
+    /* Paxos agrees on payload digests, payloads are broadcast once */
+    public static final boolean DIGEST_CONSENSUS_ENABLED = false;
+    public static final String PAYLOAD_FILENAME = "payload.ser";
+
+    /* Voting nodes that only store ballots and digests, never payloads */
+    public static final Set<Integer> WITNESS_NODE_IDS = Set.of();
+
+    public static boolean isReplica(int nodeId) {
+        return REPLICA_ADDR_MAP.containsKey(nodeId);
+    }
+
+    public static boolean isWitness(int nodeId) {
+        return WITNESS_NODE_IDS.contains(nodeId);
+    }
+
+    /**
+     * hasCalendar: only the NODE_COUNT founding nodes own a calendar, nodes
+     * that join later replicate the log but cannot be participants
+     */
+    public static boolean hasCalendar(int nodeId) {
+        return nodeId >= 0 && nodeId < NODE_COUNT;
+    }
+
+    /**
+     * checkWitnessConfig: witnesses only hold digests, so consensus must run
+     * on digests, and they never propose, so they cannot own log slots
+     * @return error message, or null if the configuration is valid
+     */
+    public static String checkWitnessConfig() {
+        if (WITNESS_NODE_IDS.isEmpty()) {
+            return null;
+        }
+        if (!DIGEST_CONSENSUS_ENABLED) {
+            return "Witness nodes require DIGEST_CONSENSUS_ENABLED";
+        }
+        if (ROTATING_SLOTS_ENABLED) {
+            return "Witness nodes cannot be used with ROTATING_SLOTS_ENABLED";
+        }
+        if (WITNESS_NODE_IDS.size() >= NODE_COUNT) {
+            return "At least one node must not be a witness";
+        }
+        return null;
+    }
 
     public static final Level GLOBAL_LOG_LEVEL = Level.WARNING;
 }
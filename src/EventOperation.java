@@ -1,3 +1,3 @@
 public enum EventOperation {
-    ADD, DELETE
+    ADD, DELETE, NOOP, RECONFIGURE, PREPARE, COMMIT_PREPARED, ABORT_PREPARED
 }
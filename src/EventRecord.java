@@ -3,12 +3,21 @@
  */
 
 import java.io.Serializable;
+import java.util.ArrayList;
 
 public class EventRecord implements Serializable {
     private EventOperation operation;
     private int clock;
     private int nodeId;
     private Appointment appointment;
+    /* Fast-path commits that must be applied before this log event */
+    private ArrayList<String> fastDeps;
+    /* Digest of the payload when consensus runs on digests */
+    private String digest;
+    /* New cluster configuration of a RECONFIGURE event */
+    private ClusterConfig config;
+    /* Shard whose log holds the outcome of a PREPARE event */
+    private int coordinatorShard;
 
     /* Constructor */
     public EventRecord(EventOperation op, int event_clock, int node_id,
@@ -19,6 +28,71 @@ public class EventRecord implements Serializable {
         appointment = appt;
     }
 
+    /**
+     * noop: event that fills a Paxos log slot without changing the calendar
+     * @param node_id
+     * @return
+     */
+    public static EventRecord noop(int node_id) {
+        return new EventRecord(EventOperation.NOOP, 0, node_id, null);
+    }
+
+    /**
+     * reconfigure: event that installs config for the following log slots
+     * @param config
+     * @param node_id
+     * @return
+     */
+    public static EventRecord reconfigure(ClusterConfig config, int node_id) {
+        EventRecord result = new EventRecord(EventOperation.RECONFIGURE, 0,
+                node_id, null);
+        result.config = config;
+        return result;
+    }
+
+    /**
+     * prepare: event that locks the slots of a cross-shard appointment in
+     * one group until its outcome is logged there
+     * @param appt
+     * @param coordinator_shard shard that logs the outcome first
+     * @param node_id
+     * @return
+     */
+    public static EventRecord prepare(Appointment appt, int coordinator_shard,
+                                      int node_id) {
+        EventRecord result = new EventRecord(EventOperation.PREPARE, 0,
+                node_id, appt);
+        result.coordinatorShard = coordinator_shard;
+        return result;
+    }
+
+    /**
+     * decide: outcome of a cross-shard appointment
+     * @param appt
+     * @param commit
+     * @param node_id
+     * @return
+     */
+    public static EventRecord decide(Appointment appt, boolean commit,
+                                     int node_id) {
+        return new EventRecord(commit ? EventOperation.COMMIT_PREPARED :
+                EventOperation.ABORT_PREPARED, 0, node_id, appt);
+    }
+
+    /**
+     * digestOnly: record that stands for er in consensus, without the
+     * appointment payload
+     * @param er record whose digest has been set
+     * @param node_id
+     * @return
+     */
+    public static EventRecord digestOnly(EventRecord er, int node_id) {
+        EventRecord result = new EventRecord(er.getOperation(), 0, node_id,
+                null);
+        result.digest = er.digest;
+        return result;
+    }
+
     /* Getters */
     EventOperation getOperation() {
         return operation;
@@ -37,4 +111,65 @@ public class EventRecord implements Serializable {
         return this.nodeId;
     }
 
+    public ArrayList<String> getFastDeps() {
+        return fastDeps;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public ClusterConfig getConfig() {
+        return config;
+    }
+
+    public int getCoordinatorShard() {
+        return coordinatorShard;
+    }
+
+    /**
+     * getKey: identity of an event in the Wuu-Bernstein log, its node id
+     * and clock. Paxos records all have clock 0 and are told apart by their
+     * log slot instead.
+     * @return
+     */
+    public long getKey() {
+        return ((long) nodeId << 32) | (clock & 0xffffffffL);
+    }
+
+    public boolean isDigestOnly() {
+        return appointment == null && config == null && digest != null;
+    }
+
+    /**
+     * isSameEvent: whether other is this event, possibly in its digest-only
+     * form. The events of one node are told apart by their digest,
+     * appointment id or configuration.
+     * @param other
+     * @return
+     */
+    public boolean isSameEvent(EventRecord other) {
+        if (other == null || operation != other.operation ||
+                nodeId != other.nodeId) {
+            return false;
+        }
+        if (digest != null && other.digest != null) {
+            return digest.equals(other.digest);
+        }
+        if (appointment != null && other.appointment != null) {
+            return appointment.getId().equals(other.appointment.getId());
+        }
+        return config != null && other.config != null &&
+                config.toString().equals(other.config.toString());
+    }
+
+    /* Setters */
+    public void setFastDeps(ArrayList<String> deps) {
+        fastDeps = deps;
+    }
+
+    public void setDigest(String d) {
+        digest = d;
+    }
+
 }
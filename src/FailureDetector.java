@@ -0,0 +1,339 @@
+/**
+ * FailureDetector class: SWIM-style failure detection over UDP, shared by
+ * the Paxos and the Wuu-Bernstein nodes. Every SWIM_PROTOCOL_PERIOD the
+ * node pings the next member in a shuffled round-robin order. Without an
+ * ack within SWIM_PING_TIMEOUT it asks SWIM_INDIRECT_PROBES other members
+ * to ping it on its behalf and forward the ack, so a single lossy link does
+ * not condemn a member. A member that stays silent for the whole period
+ * becomes suspect, and dead once it has been suspect for
+ * SWIM_SUSPICION_TIMEOUT. Any message from a member makes it alive again,
+ * and dead members keep being probed so a restarted node is noticed. Each
+ * node keeps its own view, nothing is piggybacked on the probes. Until the
+ * detector is started every member counts as alive. A view can be wrong, so
+ * it only orders peers, nothing is refused because of it.
+ */
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+public class FailureDetector extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            FailureDetector.class.getName());
+
+    public enum PeerState { ALIVE, SUSPECT, DEAD }
+
+    private static final byte PING = 0;
+    private static final byte ACK = 1;
+    private static final byte PING_REQ = 2;
+
+    private static volatile FailureDetector instance;
+
+    private final int nodeId;
+    private final DatagramSocket socket;
+    /* Node id -> address whose port also serves the detector */
+    private final Supplier<Map<Integer, NodeAddress>> members;
+    private final Map<Integer, PeerState> states;
+    private final Map<Integer, Long> lastHeard;
+    private final Map<Integer, Long> suspectedAt;
+    /* Guards the state changes, signalled whenever a member is heard */
+    private final Lock stateLock;
+    private final Condition heard;
+
+    /* Constructor */
+    private FailureDetector(int node_id, DatagramSocket udp_socket,
+                            Supplier<Map<Integer, NodeAddress>> member_map) {
+        nodeId = node_id;
+        socket = udp_socket;
+        members = member_map;
+        states = new ConcurrentHashMap<>();
+        lastHeard = new ConcurrentHashMap<>();
+        suspectedAt = new ConcurrentHashMap<>();
+        stateLock = new ReentrantLock();
+        heard = stateLock.newCondition();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * start: run the detector of this process on the UDP port with the
+     * same number as the node port. Does nothing when
+     * FAILURE_DETECTOR_ENABLED is off.
+     * @param node_id
+     * @param port
+     * @param member_map current members, may change between calls
+     */
+    public static synchronized void start(
+            int node_id, int port,
+            Supplier<Map<Integer, NodeAddress>> member_map) {
+        if (!Constants.FAILURE_DETECTOR_ENABLED || instance != null) {
+            return;
+        }
+        DatagramSocket udpSocket;
+        try {
+            udpSocket = new DatagramSocket(port);
+        } catch (IOException e) {
+            LG.severe("Cannot start failure detector on port " + port + " " +
+                    e);
+            return;
+        }
+        FailureDetector detector = new FailureDetector(node_id, udpSocket,
+                member_map);
+        Thread receiver = new Thread(detector::receive);
+        receiver.setDaemon(true);
+        receiver.start();
+        detector.start();
+        instance = detector;
+    }
+
+    /**
+     * isDead: whether the member has stayed silent past the suspicion
+     * timeout
+     * @param id
+     * @return false if the detector is not running
+     */
+    public static boolean isDead(int id) {
+        FailureDetector detector = instance;
+        return detector != null && detector.states.get(id) == PeerState.DEAD;
+    }
+
+    public static boolean isSuspect(int id) {
+        FailureDetector detector = instance;
+        return detector != null &&
+                detector.states.get(id) == PeerState.SUSPECT;
+    }
+
+    /**
+     * view: the state of every member heard of or probed so far
+     * @return empty if the detector is not running
+     */
+    public static Map<Integer, PeerState> view() {
+        FailureDetector detector = instance;
+        if (detector == null) {
+            return Collections.emptyMap();
+        }
+        return new TreeMap<>(detector.states);
+    }
+
+    /**
+     * run: one probe per protocol period
+     */
+    public void run() {
+        List<Integer> order = new ArrayList<>();
+        while (true) {
+            long periodStart = System.currentTimeMillis();
+            Map<Integer, NodeAddress> current = others();
+            if (order.isEmpty()) {
+                order.addAll(current.keySet());
+                Collections.shuffle(order);
+            }
+            if (!order.isEmpty()) {
+                probe(order.remove(0), current, periodStart);
+            }
+            expireSuspects();
+            long left = periodStart + Constants.SWIM_PROTOCOL_PERIOD -
+                    System.currentTimeMillis();
+            try {
+                if (left > 0) {
+                    Thread.sleep(left);
+                }
+            } catch (InterruptedException e) {
+                LG.warning("FailureDetector interrupted, exit");
+                return;
+            }
+        }
+    }
+
+    /** Helper functions **/
+
+    /**
+     * probe: ping target directly, then through helpers, and suspect it if
+     * no ack arrives within the period
+     */
+    private void probe(int target, Map<Integer, NodeAddress> current,
+                       long periodStart) {
+        NodeAddress addr = current.get(target);
+        if (addr == null) {
+            /* Removed from the configuration since the order was made */
+            return;
+        }
+        send(PING, target, nodeId, addr);
+        if (awaitAck(target, periodStart, Constants.SWIM_PING_TIMEOUT)) {
+            return;
+        }
+
+        List<Integer> helpers = new ArrayList<>();
+        for (int id: current.keySet()) {
+            if (id != target && !isDead(id)) {
+                helpers.add(id);
+            }
+        }
+        Collections.shuffle(helpers);
+        for (int helper: helpers.subList(0, Math.min(
+                Constants.SWIM_INDIRECT_PROBES, helpers.size()))) {
+            send(PING_REQ, target, nodeId, current.get(helper));
+        }
+        if (!awaitAck(target, periodStart, Constants.SWIM_PROTOCOL_PERIOD -
+                Constants.SWIM_PING_TIMEOUT)) {
+            suspect(target);
+        }
+    }
+
+    /**
+     * awaitAck: wait up to timeout ms until target is heard after since
+     */
+    private boolean awaitAck(int target, long since, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        stateLock.lock();
+        try {
+            while (lastHeard.getOrDefault(target, -1L) < since) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                heard.await(left, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * receive: answer pings, run the pings asked by other members and pass
+     * the acks of those back
+     */
+    private void receive() {
+        byte[] buffer = new byte[64];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            byte type;
+            int sender, subject, origin;
+            try {
+                socket.receive(packet);
+                DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(packet.getData(), 0,
+                                packet.getLength()));
+                type = in.readByte();
+                sender = in.readInt();
+                subject = in.readInt();
+                origin = in.readInt();
+            } catch (IOException e) {
+                LG.warning("Cannot receive probe " + e);
+                continue;
+            }
+            markAlive(sender);
+
+            if (type == PING) {
+                /* origin is whoever asked for the ping */
+                send(ACK, nodeId, origin, packet.getSocketAddress());
+            } else if (type == PING_REQ) {
+                NodeAddress addr = others().get(subject);
+                if (addr != null) {
+                    send(PING, subject, sender, addr);
+                }
+            } else if (type == ACK) {
+                markAlive(subject);
+                if (origin != nodeId) {
+                    NodeAddress addr = others().get(origin);
+                    if (addr != null) {
+                        send(ACK, subject, origin, addr);
+                    }
+                }
+            }
+        }
+    }
+
+    private Map<Integer, NodeAddress> others() {
+        Map<Integer, NodeAddress> result = new HashMap<>(members.get());
+        result.remove(nodeId);
+        return result;
+    }
+
+    private void markAlive(int id) {
+        stateLock.lock();
+        try {
+            lastHeard.put(id, System.currentTimeMillis());
+            suspectedAt.remove(id);
+            PeerState old = states.put(id, PeerState.ALIVE);
+            if (old != null && old != PeerState.ALIVE) {
+                LG.info("Node " + id + " is alive again");
+            }
+            heard.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void suspect(int id) {
+        stateLock.lock();
+        try {
+            if (states.get(id) != PeerState.DEAD &&
+                    !suspectedAt.containsKey(id)) {
+                states.put(id, PeerState.SUSPECT);
+                suspectedAt.put(id, System.currentTimeMillis());
+                LG.info("Node " + id + " is suspect");
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void expireSuspects() {
+        long now = System.currentTimeMillis();
+        stateLock.lock();
+        try {
+            Iterator<Map.Entry<Integer, Long>> it =
+                    suspectedAt.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> entry = it.next();
+                if (now - entry.getValue() >=
+                        Constants.SWIM_SUSPICION_TIMEOUT) {
+                    states.put(entry.getKey(), PeerState.DEAD);
+                    it.remove();
+                    LG.warning("Node " + entry.getKey() + " is down");
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    private void send(byte type, int subject, int origin, NodeAddress addr) {
+        try {
+            send(type, subject, origin, new InetSocketAddress(
+                    InetAddress.getByName(addr.getIp()), addr.getPort()));
+        } catch (IOException e) {
+            LG.fine("Cannot resolve " + addr.getIp() + " " + e);
+        }
+    }
+
+    private void send(byte type, int subject, int origin, SocketAddress to) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeInt(nodeId);
+            out.writeInt(subject);
+            out.writeInt(origin);
+            socket.send(new DatagramPacket(bytes.toByteArray(), bytes.size(),
+                    to));
+        } catch (IOException e) {
+            LG.fine("Cannot send probe to " + to + " " + e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * GapRepairer class: tracks holes in the Paxos log of one namespace and
+ * requests them from the peers. Outstanding holes are deduplicated, contiguous
+ * holes are batched into one LEARNER_REQUEST range, and unanswered requests
+ * are retried with exponential backoff. One background thread serves the
+ * repairers of all the namespaces of the process.
+ */
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class GapRepairer {
+    private final static Logger LG = Logger.getLogger(
+            GapRepairer.class.getName());
+
+    /* Repairers of all the namespaces, served by one thread */
+    private static final List<GapRepairer> REPAIRERS = new ArrayList<>();
+    private static final Lock HOLES_LOCK = new ReentrantLock();
+    private static final Condition HOLES_CHANGED = HOLES_LOCK.newCondition();
+    private static Thread worker;
+
+    private int nodeId;
+    private String namespace;
+    /* Guarded by HOLES_LOCK */
+    private final TreeMap<Integer, Hole> holes;
+
+    /* Constructor */
+    public GapRepairer(int node_id, String namespace_id) {
+        nodeId = node_id;
+        namespace = namespace_id;
+        holes = new TreeMap<>();
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * start: have the repair thread of the process serve this repairer,
+     * starting the thread with the first one
+     */
+    public void start() {
+        HOLES_LOCK.lock();
+        REPAIRERS.add(this);
+        if (worker == null) {
+            worker = new Thread(GapRepairer::serve);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        HOLES_CHANGED.signal();
+        HOLES_LOCK.unlock();
+    }
+
+    /**
+     * reportHole: register logId as missing. A hole that is already tracked
+     * keeps its current retry schedule.
+     * @param logId
+     */
+    public void reportHole(int logId) {
+        HOLES_LOCK.lock();
+        if (!holes.containsKey(logId)) {
+            holes.put(logId, new Hole());
+            HOLES_CHANGED.signal();
+        }
+        HOLES_LOCK.unlock();
+    }
+
+    /**
+     * resolve: stop requesting logId, it has been learned
+     * @param logId
+     */
+    public void resolve(int logId) {
+        HOLES_LOCK.lock();
+        holes.remove(logId);
+        HOLES_LOCK.unlock();
+    }
+
+    public int getOutstandingCount() {
+        HOLES_LOCK.lock();
+        int result = holes.size();
+        HOLES_LOCK.unlock();
+        return result;
+    }
+
+    /**
+     * serve: wait for holes in any namespace, send the ones that are due in
+     * contiguous ranges, then sleep until the earliest retry
+     */
+    private static void serve() {
+        while (true) {
+            Map<GapRepairer, List<int[]>> due = new HashMap<>();
+            HOLES_LOCK.lock();
+            try {
+                long now = System.currentTimeMillis();
+                long nextDue = Long.MAX_VALUE;
+                for (GapRepairer repairer: REPAIRERS) {
+                    List<int[]> ranges = new ArrayList<>();
+                    nextDue = Math.min(nextDue,
+                            repairer.collectDue(now, ranges));
+                    if (!ranges.isEmpty()) {
+                        due.put(repairer, ranges);
+                    }
+                }
+                if (due.isEmpty()) {
+                    if (nextDue == Long.MAX_VALUE) {
+                        HOLES_CHANGED.await();
+                    } else {
+                        HOLES_CHANGED.await(nextDue - now,
+                                TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LG.warning("GapRepairer interrupted, exit");
+                return;
+            } finally {
+                HOLES_LOCK.unlock();
+            }
+
+            for (Map.Entry<GapRepairer, List<int[]>> pair: due.entrySet()) {
+                pair.getKey().request(pair.getValue());
+            }
+        }
+    }
+
+    /** Helper functions **/
+
+    /**
+     * collectDue: add the due holes to ranges, contiguous ones merged, and
+     * schedule their retry. Caller must hold HOLES_LOCK.
+     * @return time of the earliest retry, Long.MAX_VALUE if no hole is left
+     */
+    private long collectDue(long now, List<int[]> ranges) {
+        long nextDue = Long.MAX_VALUE;
+        int rangeStart = -1;
+        int rangeEnd = -1;
+        for (Map.Entry<Integer, Hole> pair: holes.entrySet()) {
+            int logId = pair.getKey();
+            Hole hole = pair.getValue();
+            if (hole.nextRetry > now) {
+                nextDue = Math.min(nextDue, hole.nextRetry);
+                continue;
+            }
+            if (rangeStart >= 0 && logId == rangeEnd + 1 &&
+                    logId - rangeStart < Constants.MISSING_EVENT_BATCH_SIZE) {
+                rangeEnd = logId;
+            } else {
+                if (rangeStart >= 0) {
+                    ranges.add(new int[] {rangeStart, rangeEnd});
+                }
+                rangeStart = logId;
+                rangeEnd = logId;
+            }
+            hole.scheduleRetry(now);
+            nextDue = Math.min(nextDue, hole.nextRetry);
+        }
+        if (rangeStart >= 0) {
+            ranges.add(new int[] {rangeStart, rangeEnd});
+        }
+        return nextDue;
+    }
+
+    private void request(List<int[]> ranges) {
+        for (int[] range: ranges) {
+            LG.info("Requesting missing log ids " + range[0] + " - " +
+                    range[1] + " of " + namespace);
+            PaxosMessage requestMsg = new PaxosMessage(
+                    PaxosMessageType.LEARNER_REQUEST, -1, range[0], -1,
+                    nodeId, null, range[1]);
+            requestMsg.setNamespace(namespace);
+            try {
+                requestMsg.sendToAll();
+            } catch (Exception e) {
+                LG.warning("Cannot send message to other peers " + e);
+            }
+        }
+    }
+
+    private class Hole {
+        private long nextRetry;
+        private int backoff;
+
+        /* Constructor */
+        public Hole() {
+            nextRetry = 0;
+            backoff = Constants.REPAIR_INITIAL_BACKOFF;
+        }
+
+        private void scheduleRetry(long now) {
+            nextRetry = now + backoff;
+            backoff = Math.min(backoff * 2, Constants.REPAIR_MAX_BACKOFF);
+        }
+    }
+}
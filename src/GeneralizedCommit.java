@@ -0,0 +1,616 @@
+/**
+ * GeneralizedCommit class: EPaxos-style leaderless commit that runs alongside
+ * the Proposer/Acceptor log.
+ * Two EventRecords interfere when they share a participant on the same day
+ * with overlapping slots, the footprint used by PaxosNode.hasConflict. Every
+ * record is first PRE_ACCEPTed by all nodes; each replies with the known
+ * instances it interferes with. If a quorum of voters reports none, the
+ * record commutes with everything in flight and is committed in one round
+ * trip with a COMMIT broadcast. The quorum meets both configured quorum
+ * sizes, so two fast-path rounds always share a replier. Every node stores a
+ * fast-path commit on disk before it acknowledges it, and the command leader
+ * resends the COMMIT until a phase-2 quorum has acknowledged it, after a
+ * restart too: it stores which of its commits are unacknowledged. Otherwise
+ * the command leader announces the slow path and the record is ordered
+ * through the Paxos log, carrying the fast-path commits it depends on so
+ * that every learner applies those first.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class GeneralizedCommit extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            GeneralizedCommit.class.getName());
+
+    private PaxosNode node;
+    private int nodeId;
+    private String namespace;
+    private String instancePrefix;
+    private int instanceSeq;
+
+    /* Acceptor role: instances seen in PRE_ACCEPT */
+    private final Map<String, Instance> instances;
+
+    /* Command leader role: outstanding PRE_ACCEPT rounds */
+    private final Map<String, Round> rounds;
+    /* Command leader role: fast-path commits not yet stored by a quorum */
+    private final Map<String, PendingCommit> unacked;
+    private final Lock roundsLock;
+    private final Condition roundsChanged;
+
+    /* Learner role: fast-path commits applied locally, in apply order */
+    private LinkedHashMap<String, FastCommit> fastCommits;
+    private final Set<String> slowIds;
+    private final LinkedBlockingQueue<String> missingCommits;
+
+    /* Constructor */
+    public GeneralizedCommit(PaxosNode node_obj) {
+        node = node_obj;
+        nodeId = node_obj.getNodeId();
+        namespace = node_obj.getNamespace();
+        instancePrefix = String.format("n%03dt%d", nodeId,
+                System.currentTimeMillis());
+        instanceSeq = 0;
+        instances = new HashMap<>();
+        rounds = new HashMap<>();
+        unacked = new HashMap<>();
+        roundsLock = new ReentrantLock();
+        roundsChanged = roundsLock.newCondition();
+        fastCommits = new LinkedHashMap<>();
+        slowIds = new HashSet<>();
+        missingCommits = new LinkedBlockingQueue<>();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * tryFastCommit: run the PRE_ACCEPT round for er.
+     * @param er
+     * @return true if er has been committed on the fast path. On false the
+     * caller must order er through the Paxos log; er then carries the
+     * fast-path commits it depends on.
+     */
+    public boolean tryFastCommit(EventRecord er) {
+        if (fastVoterCount() < fastQuorum()) {
+            /* The witnesses never reply, no fast path can succeed */
+            return false;
+        }
+        String id;
+        Round round = new Round();
+        roundsLock.lock();
+        id = instancePrefix + "i" + (++instanceSeq);
+        rounds.put(id, round);
+        roundsLock.unlock();
+
+        PaxosMessage preAcceptMsg = new PaxosMessage(
+                PaxosMessageType.PRE_ACCEPT, -1, -1, -1, nodeId, er);
+        preAcceptMsg.setNamespace(namespace);
+        preAcceptMsg.setInstance(id, null);
+        preAcceptMsg.sendToAll();
+
+        boolean gotMajority = awaitReplies(round);
+        roundsLock.lock();
+        rounds.remove(id);
+        roundsLock.unlock();
+
+        if (gotMajority && round.deps.isEmpty()) {
+            LG.info("Fast path commit for " + id);
+            /* Stored here, as unacknowledged, before anyone is told */
+            PendingCommit pending = new PendingCommit(er);
+            roundsLock.lock();
+            unacked.put(id, pending);
+            roundsLock.unlock();
+            node.applyFastCommit(id, er);
+            sendCommit(id, er);
+            if (!awaitCommitAcks(id)) {
+                /* Decided already, the run thread keeps resending it */
+                LG.warning("Fast commit " + id + " not yet stored by a " +
+                        "quorum");
+            }
+            return true;
+        }
+
+        LG.info("Slow path for " + id + ", deps = " + round.deps);
+        PaxosMessage slowMsg = new PaxosMessage(
+                PaxosMessageType.SLOW_PATH_NOTICE, -1, -1, -1, nodeId, null);
+        slowMsg.setNamespace(namespace);
+        slowMsg.setInstance(id, null);
+        slowMsg.sendToAll();
+        er.setFastDeps(resolveFastDeps(round.deps));
+        return false;
+    }
+
+    /**
+     * handlePreAccept: record the instance and reply with the known
+     * instances it interferes with
+     * @param msg
+     */
+    public void handlePreAccept(PaxosMessage msg) {
+        ArrayList<String> deps = new ArrayList<>();
+        EventRecord er = msg.getER();
+        long now = System.currentTimeMillis();
+        synchronized (instances) {
+            instances.values().removeIf(inst -> inst.isExpired(now));
+            for (Map.Entry<String, Instance> pair: instances.entrySet()) {
+                if (interferes(pair.getValue().er, er)) {
+                    deps.add(pair.getKey());
+                }
+            }
+            instances.put(msg.getInstanceId(), new Instance(er, now));
+        }
+
+        PaxosMessage replyMsg = new PaxosMessage(
+                PaxosMessageType.PRE_ACCEPT_OK, -1, -1, -1, nodeId, null);
+        replyMsg.setNamespace(namespace);
+        replyMsg.setInstance(msg.getInstanceId(), deps);
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
+        replyMsg.sendToAddr(addr.getIp(), addr.getPort());
+    }
+
+    public void handlePreAcceptOk(PaxosMessage msg) {
+        roundsLock.lock();
+        Round round = rounds.get(msg.getInstanceId());
+        if (round != null && Membership.latest().isVoter(msg.getNodeId())) {
+            ++round.replyCount;
+            round.deps.addAll(msg.getDeps());
+            if (round.replyCount >= fastQuorum()) {
+                roundsChanged.signalAll();
+            }
+        }
+        roundsLock.unlock();
+    }
+
+    /**
+     * handleCommit: a fast-path commit, apply it to the local calendar, which
+     * stores it, then acknowledge it to the sender
+     * @param msg
+     */
+    public void handleCommit(PaxosMessage msg) {
+        markResolved(msg.getInstanceId());
+        node.applyFastCommit(msg.getInstanceId(), msg.getER());
+        roundsLock.lock();
+        roundsChanged.signalAll();
+        roundsLock.unlock();
+
+        PaxosMessage ackMsg = new PaxosMessage(PaxosMessageType.COMMIT_ACK,
+                -1, -1, -1, nodeId, null);
+        ackMsg.setNamespace(namespace);
+        ackMsg.setInstance(msg.getInstanceId(), null);
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
+        if (addr != null) {
+            ackMsg.sendToAddr(addr.getIp(), addr.getPort());
+        }
+    }
+
+    /**
+     * handleCommitAck: a voter has stored a fast-path commit of this node
+     * @param msg
+     */
+    public void handleCommitAck(PaxosMessage msg) {
+        roundsLock.lock();
+        PendingCommit pending = unacked.get(msg.getInstanceId());
+        if (pending != null && Membership.latest().isVoter(msg.getNodeId())) {
+            pending.ackers.add(msg.getNodeId());
+            if (pending.ackers.size() >=
+                    Membership.latest().getPhase2Quorum()) {
+                unacked.remove(msg.getInstanceId());
+                roundsChanged.signalAll();
+            }
+        }
+        roundsLock.unlock();
+    }
+
+    public void handleSlowPathNotice(PaxosMessage msg) {
+        markResolved(msg.getInstanceId());
+        roundsLock.lock();
+        slowIds.add(msg.getInstanceId());
+        roundsChanged.signalAll();
+        roundsLock.unlock();
+    }
+
+    /**
+     * handleCommitRequest: reply with the requested fast-path commit, or all
+     * of them if no instance id is given
+     * @param msg
+     */
+    public void handleCommitRequest(PaxosMessage msg) {
+        String requestedId = msg.getInstanceId();
+        List<Map.Entry<String, FastCommit>> replies = new ArrayList<>();
+        roundsLock.lock();
+        for (Map.Entry<String, FastCommit> pair: fastCommits.entrySet()) {
+            if (requestedId == null || requestedId.equals(pair.getKey())) {
+                replies.add(pair);
+            }
+        }
+        roundsLock.unlock();
+
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
+        for (Map.Entry<String, FastCommit> pair: replies) {
+            PaxosMessage commitMsg = new PaxosMessage(PaxosMessageType.COMMIT,
+                    -1, -1, -1, nodeId, pair.getValue().er);
+            commitMsg.setNamespace(namespace);
+            commitMsg.setInstance(pair.getKey(), null);
+            commitMsg.sendToAddr(addr.getIp(), addr.getPort());
+        }
+    }
+
+    /**
+     * markApplied: record a fast-path commit as applied after log id
+     * afterLogId and store it. Called by the node under its lock.
+     * @return false if the commit has already been applied
+     */
+    public boolean markApplied(String id, EventRecord er, int afterLogId) {
+        roundsLock.lock();
+        try {
+            if (fastCommits.containsKey(id)) {
+                return false;
+            }
+            fastCommits.put(id, new FastCommit(er, afterLogId));
+            save();
+            return true;
+        } catch (IOException e) {
+            LG.severe("Cannot store fast commit " + id + " " + e);
+            return true;
+        } finally {
+            roundsLock.unlock();
+        }
+    }
+
+    /**
+     * depsApplied: true if every fast-path commit er depends on has been
+     * applied locally. Missing ones are requested from the peers.
+     * @param er
+     * @return
+     */
+    public boolean depsApplied(EventRecord er) {
+        if (er.getFastDeps() == null) {
+            return true;
+        }
+        boolean result = true;
+        roundsLock.lock();
+        for (String dep: er.getFastDeps()) {
+            if (!fastCommits.containsKey(dep)) {
+                missingCommits.offer(dep);
+                result = false;
+            }
+        }
+        roundsLock.unlock();
+        return result;
+    }
+
+    /**
+     * getFastCommits: locally applied fast-path commits in apply order
+     * @return
+     */
+    public List<FastCommit> getFastCommits() {
+        roundsLock.lock();
+        List<FastCommit> result = new ArrayList<>(fastCommits.values());
+        roundsLock.unlock();
+        return result;
+    }
+
+    /**
+     * run: request missing fast-path commits from the peers, starting with
+     * all of them to catch up after a restart, and resend the own commits a
+     * quorum has not acknowledged yet
+     */
+    public void run() {
+        sendCommitRequest(null);
+        while (true) {
+            try {
+                String id = missingCommits.poll(
+                        Constants.REPAIR_INITIAL_BACKOFF,
+                        TimeUnit.MILLISECONDS);
+                if (id != null) {
+                    sendCommitRequest(id);
+                    Thread.sleep(Constants.REPAIR_INITIAL_BACKOFF);
+                }
+            } catch (InterruptedException e) {
+                LG.warning("GeneralizedCommit interrupted, exit");
+                return;
+            }
+            resendUnacked();
+        }
+    }
+
+    /**
+     * load: restore fast-path commits stored by save, and resend the ones
+     * of this node that a quorum had not acknowledged yet
+     */
+    /* The file is only written by save, with these collection types */
+    @SuppressWarnings("unchecked")
+    public void load() throws Exception {
+        File fd = new File(node.storageName(Constants.FAST_COMMIT_FILENAME));
+        if (!fd.exists()) {
+            return;
+        }
+        ObjectInputStream objIn = new ObjectInputStream(
+                new FileInputStream(fd));
+        fastCommits = (LinkedHashMap<String, FastCommit>)objIn.readObject();
+        List<String> unackedIds;
+        try {
+            unackedIds = (ArrayList<String>) objIn.readObject();
+        } catch (EOFException | OptionalDataException e) {
+            /* Stored before unacknowledged commits were */
+            unackedIds = Collections.emptyList();
+        }
+        objIn.close();
+        roundsLock.lock();
+        for (String id: unackedIds) {
+            FastCommit commit = fastCommits.get(id);
+            if (commit != null) {
+                unacked.put(id, new PendingCommit(commit.getER()));
+            }
+        }
+        roundsLock.unlock();
+    }
+
+    /**
+     * save: store fast-path commits and the ids of the unacknowledged ones
+     * to file, replacing it only once the new content is on disk
+     */
+    public void save() throws IOException {
+        File fd = new File(node.storageName(Constants.FAST_COMMIT_FILENAME));
+        File tmp = new File(fd.getPath() + ".tmp");
+        roundsLock.lock();
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            ObjectOutputStream objOut = new ObjectOutputStream(out);
+            objOut.writeObject(fastCommits);
+            objOut.writeObject(new ArrayList<>(unacked.keySet()));
+            objOut.flush();
+            out.getFD().sync();
+        } finally {
+            roundsLock.unlock();
+        }
+        if (!tmp.renameTo(fd)) {
+            throw new IOException("Cannot replace " + fd);
+        }
+    }
+
+    /** Helper functions **/
+
+    /**
+     * interferes: two events interfere if they share a participant on the
+     * same day with overlapping slots
+     */
+    public static boolean interferes(EventRecord a, EventRecord b) {
+        Appointment x = a.getAppointment();
+        Appointment y = b.getAppointment();
+        if (x == null || y == null || x.getDay() != y.getDay() ||
+                x.getEndTime() < y.getStartTime() ||
+                y.getEndTime() < x.getStartTime()) {
+            return false;
+        }
+        for (Integer p: x.getParticipantsId()) {
+            if (y.getParticipantsId().contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * fastQuorum: PRE_ACCEPT replies needed for the fast path. Meeting both
+     * configured quorums makes any two such sets of repliers intersect.
+     */
+    private static int fastQuorum() {
+        ClusterConfig config = Membership.latest();
+        return Math.max(config.getPhase1Quorum(), config.getPhase2Quorum());
+    }
+
+    /**
+     * fastVoterCount: voters that take part in PRE_ACCEPT rounds, witnesses
+     * do not
+     */
+    private static int fastVoterCount() {
+        int count = 0;
+        for (int id: Membership.latest().getVoters().keySet()) {
+            if (!Constants.isWitness(id)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private boolean awaitReplies(Round round) {
+        roundsLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            while (round.replyCount < fastQuorum()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                roundsChanged.await(remaining, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            roundsLock.unlock();
+        }
+    }
+
+    /**
+     * resolveFastDeps: wait until every dependency is known to be either a
+     * fast-path commit or ordered by the log, and keep the fast-path ones.
+     * Dependencies still unresolved after WAIT_TIMEOUT are dropped.
+     */
+    private ArrayList<String> resolveFastDeps(Set<String> deps) {
+        ArrayList<String> fastDeps = new ArrayList<>();
+        roundsLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            for (String dep: deps) {
+                while (!fastCommits.containsKey(dep) &&
+                        !slowIds.contains(dep)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        LG.warning("Dependency " + dep + " unresolved");
+                        break;
+                    }
+                    roundsChanged.await(remaining, TimeUnit.MILLISECONDS);
+                }
+                if (fastCommits.containsKey(dep)) {
+                    fastDeps.add(dep);
+                }
+            }
+        } catch (InterruptedException e) {
+            LG.warning("resolveFastDeps interrupted " + e);
+        } finally {
+            roundsLock.unlock();
+        }
+        return fastDeps;
+    }
+
+    /**
+     * awaitCommitAcks: wait until a quorum has stored commit id, while the
+     * run thread resends it
+     * @return false if that did not happen within WAIT_TIMEOUT
+     */
+    private boolean awaitCommitAcks(String id) {
+        roundsLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            while (unacked.containsKey(id)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                roundsChanged.await(remaining, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            roundsLock.unlock();
+        }
+    }
+
+    private void resendUnacked() {
+        Map<String, EventRecord> due = new HashMap<>();
+        long now = System.currentTimeMillis();
+        roundsLock.lock();
+        for (Map.Entry<String, PendingCommit> pair: unacked.entrySet()) {
+            PendingCommit pending = pair.getValue();
+            if (pending.nextRetry <= now) {
+                due.put(pair.getKey(), pending.er);
+                pending.nextRetry = now + pending.backoff;
+                pending.backoff = Math.min(pending.backoff * 2,
+                        Constants.REPAIR_MAX_BACKOFF);
+            }
+        }
+        roundsLock.unlock();
+        for (Map.Entry<String, EventRecord> pair: due.entrySet()) {
+            LG.info("Resending fast commit " + pair.getKey());
+            sendCommit(pair.getKey(), pair.getValue());
+        }
+    }
+
+    private void sendCommit(String id, EventRecord er) {
+        PaxosMessage commitMsg = new PaxosMessage(PaxosMessageType.COMMIT,
+                -1, -1, -1, nodeId, er);
+        commitMsg.setNamespace(namespace);
+        commitMsg.setInstance(id, null);
+        commitMsg.sendToAll();
+    }
+
+    private void markResolved(String id) {
+        long now = System.currentTimeMillis();
+        synchronized (instances) {
+            Instance inst = instances.get(id);
+            if (inst != null && inst.resolvedAt == 0) {
+                inst.resolvedAt = now;
+            }
+        }
+    }
+
+    private void sendCommitRequest(String id) {
+        PaxosMessage requestMsg = new PaxosMessage(
+                PaxosMessageType.COMMIT_REQUEST, -1, -1, -1, nodeId, null);
+        requestMsg.setNamespace(namespace);
+        requestMsg.setInstance(id, null);
+        requestMsg.sendToAll();
+    }
+
+    private static class Instance {
+        private EventRecord er;
+        private long seenAt;
+        private long resolvedAt;
+
+        /* Constructor */
+        public Instance(EventRecord event_record, long seen_at) {
+            er = event_record;
+            seenAt = seen_at;
+            resolvedAt = 0;
+        }
+
+        private boolean isExpired(long now) {
+            long since = resolvedAt == 0 ? seenAt : resolvedAt;
+            int retention = resolvedAt == 0 ? 2 * Constants.INSTANCE_RETENTION
+                    : Constants.INSTANCE_RETENTION;
+            return now - since > retention;
+        }
+    }
+
+    private static class PendingCommit {
+        private EventRecord er;
+        private Set<Integer> ackers;
+        private long nextRetry;
+        private int backoff;
+
+        /* Constructor */
+        public PendingCommit(EventRecord event_record) {
+            er = event_record;
+            ackers = new HashSet<>();
+            nextRetry = System.currentTimeMillis() +
+                    Constants.REPAIR_INITIAL_BACKOFF;
+            backoff = Constants.REPAIR_INITIAL_BACKOFF;
+        }
+    }
+
+    private static class Round {
+        private int replyCount;
+        private Set<String> deps;
+
+        /* Constructor */
+        public Round() {
+            replyCount = 0;
+            deps = new HashSet<>();
+        }
+    }
+
+    public static class FastCommit implements Serializable {
+        /* The computed default, fast.ser files stored before stay readable */
+        private static final long serialVersionUID = 3455060373478754201L;
+
+        private EventRecord er;
+        private int afterLogId;
+
+        /* Constructor */
+        public FastCommit(EventRecord event_record, int after_log_id) {
+            er = event_record;
+            afterLogId = after_log_id;
+        }
+
+        /* Getters */
+        public EventRecord getER() {
+            return er;
+        }
+
+        public int getAfterLogId() {
+            return afterLogId;
+        }
+    }
+}
@@ -19,8 +19,8 @@ public class Learner {
     }
 
     /**
-     * handleLearnerNotice: Given msg, update allEvents and calendar stored in
-     * current node
+     * handleLearnerNotice: Given msg, hand the learned event to the node. The
+     * node buffers it and updates allEvents and calendar in log order.
      * @param msg of type LEARNER_NOTICE
      */
     public void handleLearnerNotice(PaxosMessage msg) {
@@ -32,36 +32,34 @@ public class Learner {
         } catch (Exception e) {
             LG.warning("learner addToAllEvents failed + " + e);
         }
-        try {
-            node.updateCalendar(er);
-        } catch (Exception e) {
-            LG.warning("learner updateCalendar failed + " + e);
-        }
     }
 
     /**
      * handleLearnerRequest: The function reads the given request msg, get the
-     * requested logId from current node. If the current node includes the
-     * logId, reply back to the requester. Else, ignore the request.
+     * requested logId range from current node. For every logId in the range
+     * that the current node includes, reply back to the requester. Else,
+     * ignore the logId.
      * @param msg of type LEARNER_REQUEST
      */
     public void handleLearnerRequest(PaxosMessage msg) {
-        NodeAddress addr = Constants.NODEID_ADDR_MAP.get(msg.getNodeId());
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
         int requestedLogId = msg.getLogId();
-        LG.info("requested logid = " + requestedLogId);
+        int requestedEndLogId = msg.getEndLogId();
+        LG.info("requested logid = " + requestedLogId + " - " +
+                requestedEndLogId);
 
         ArrayList<EventRecord> learnedER = node.getAllEvents();
         LG.info("learnedER.size() = " + learnedER.size());
-        if (requestedLogId < learnedER.size()) {
-            LG.info("learnedER.get(requestedLogId) = " +
-                    learnedER.get(requestedLogId));
-        }
-        if (learnedER.size() > requestedLogId &&
-                learnedER.get(requestedLogId) != null) {
-            LG.info("handleLearnerRequest sending reply");
+        for (int logId = requestedLogId; logId <= requestedEndLogId &&
+                logId < learnedER.size(); ++logId) {
+            if (learnedER.get(logId) == null) {
+                continue;
+            }
+            LG.info("handleLearnerRequest sending reply for " + logId);
             PaxosMessage replyMsg = new PaxosMessage(
-                    PaxosMessageType.LEARNER_NOTICE, -1, requestedLogId,
-                    -1, nodeId, learnedER.get(requestedLogId));
+                    PaxosMessageType.LEARNER_NOTICE, -1, logId,
+                    -1, nodeId, learnedER.get(logId));
+            replyMsg.setNamespace(msg.getNamespace());
             try {
                 replyMsg.sendToAddr(addr.getIp(), addr.getPort());
             } catch (Exception e) {
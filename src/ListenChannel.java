@@ -1,10 +1,11 @@
 /**
- * ListenChannel class for multithreading
+ * ListenChannel class for multithreading. Peers keep their links open, each
+ * is read on its own thread and the messages are handled here one at a
+ * time.
  */
 
-import java.io.ObjectInputStream;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.Map;
 import java.util.logging.Logger;
 
 
@@ -13,12 +14,13 @@ public class ListenChannel extends Thread {
             ListenChannel.class.getName());
 
     private ServerSocket server;
-    private PaxosNode node;
+    /* Namespace -> node hosting that calendar */
+    private Map<String, PaxosNode> nodes;
 
     /* Constructor */
-    public ListenChannel(ServerSocket s, PaxosNode n) {
+    public ListenChannel(ServerSocket s, Map<String, PaxosNode> n) {
         server = s;
-        node = n;
+        nodes = n;
 
         LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
     }
@@ -27,41 +29,141 @@ public class ListenChannel extends Thread {
      * run: thread to listen to incoming messages
      */
     public void run() {
-        while (true) {
-            try {
-                Socket socket = server.accept();
-                ObjectInputStream ois = new ObjectInputStream(
-                        socket.getInputStream());
-                PaxosMessage paxosMsg = (PaxosMessage)ois.readObject();
-                PaxosMessageType type = paxosMsg.getMsgType();
-                LG.info("Received paxos message " + type);
-                switch (type) {
-                    case PREPARE:
-                        node.getAccepter().handlePrepare(paxosMsg);
-                        break;
-                    case PROMISE:
-                        node.getProposer().handlePromise(paxosMsg);
-                        break;
-                    case PROPOSE:
-                        node.getAccepter().handlePropose(paxosMsg);
-                        break;
-                    case ACCEPT:
-                        node.getProposer().handleAccept(paxosMsg);
-                        break;
-                    case LEARNER_NOTICE:
-                        node.getLearner().handleLearnerNotice(paxosMsg);
-                        break;
-                    case LEARNER_REQUEST:
-                        node.getLearner().handleLearnerRequest(paxosMsg);
-                        break;
-                    default:
-                        break;
+        PeerLink.serve(server, this::deliver);
+    }
+
+    /**
+     * deliver: route a message to the node of its namespace
+     * @param paxosMsg
+     */
+    private void deliver(PaxosMessage paxosMsg) {
+        PaxosMessageType type = paxosMsg.getMsgType();
+        LG.info("Received paxos message " + type);
+        PaxosNode node = nodes.get(paxosMsg.getNamespace());
+        if (node == null) {
+            LG.warning("Unknown namespace " + paxosMsg.getNamespace());
+        } else if (!node.isReplica() || type.reachesReplica()) {
+            /* Learner replicas never join the quorums */
+            handleMessage(node, paxosMsg);
+        }
+    }
+
+    /**
+     * handleMessage: dispatch the message to the node component handling it
+     * @param node node of the namespace the message belongs to
+     * @param paxosMsg
+     */
+    private void handleMessage(PaxosNode node, PaxosMessage paxosMsg) {
+        PaxosMessageType type = paxosMsg.getMsgType();
+        switch (type) {
+            case PREPARE:
+                node.getAccepter().handlePrepare(paxosMsg);
+                break;
+            case PROMISE:
+                node.getProposer().handlePromise(paxosMsg);
+                if (node.getSlotOwnership() != null) {
+                    node.getSlotOwnership().getRevoker()
+                            .handlePromise(paxosMsg);
+                }
+                break;
+            case PROPOSE:
+                if (paxosMsg.getER() != null &&
+                        paxosMsg.getER().getDigest() != null &&
+                        !paxosMsg.getER().isDigestOnly() &&
+                        node.getPayloadStore() != null) {
+                    /* Stored before its digest is accepted */
+                    node.getPayloadStore().store(paxosMsg.getER());
+                }
+                node.getAccepter().handlePropose(paxosMsg);
+                break;
+            case ACCEPT:
+                node.getProposer().handleAccept(paxosMsg);
+                if (node.getSlotOwnership() != null) {
+                    node.getSlotOwnership().getRevoker()
+                            .handleAccept(paxosMsg);
+                    node.getSlotOwnership().handleAccept(paxosMsg);
+                }
+                break;
+            case LEARNER_NOTICE:
+                node.getLearner().handleLearnerNotice(paxosMsg);
+                break;
+            case LEARNER_REQUEST:
+                node.getLearner().handleLearnerRequest(paxosMsg);
+                break;
+            case LEASE_REQUEST:
+                node.getAccepter().handleLeaseRequest(paxosMsg);
+                break;
+            case LEASE_GRANT:
+                node.getReadLease().handleLeaseGrant(paxosMsg);
+                break;
+            case READ_INDEX_REQUEST:
+                node.getAccepter().handleReadIndexRequest(paxosMsg);
+                break;
+            case READ_INDEX_REPLY:
+                node.getReadLease().handleReadIndexReply(paxosMsg);
+                break;
+            case PRE_ACCEPT:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit()
+                            .handlePreAccept(paxosMsg);
+                }
+                break;
+            case PRE_ACCEPT_OK:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit()
+                            .handlePreAcceptOk(paxosMsg);
+                }
+                break;
+            case COMMIT:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit().handleCommit(paxosMsg);
+                }
+                break;
+            case SLOW_PATH_NOTICE:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit()
+                            .handleSlowPathNotice(paxosMsg);
+                }
+                break;
+            case PAYLOAD:
+                if (node.getPayloadStore() != null) {
+                    node.getPayloadStore().handlePayload(paxosMsg);
+                }
+                break;
+            case PAYLOAD_REQUEST:
+                if (node.getPayloadStore() != null) {
+                    node.getPayloadStore()
+                            .handlePayloadRequest(paxosMsg);
+                }
+                break;
+            case PAYLOAD_APPLIED:
+                if (node.getPayloadStore() != null) {
+                    node.getPayloadStore()
+                            .handlePayloadApplied(paxosMsg);
+                }
+                break;
+            case COMMIT_REQUEST:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit()
+                            .handleCommitRequest(paxosMsg);
+                }
+                break;
+            case COMMIT_ACK:
+                if (node.getGeneralizedCommit() != null) {
+                    node.getGeneralizedCommit().handleCommitAck(paxosMsg);
                 }
-                ois.close();
-                socket.close();
-            } catch (Exception e) {
-                LG.warning("receiving failed " + e);
-            }
+                break;
+            case SHARD_PREPARE:
+            case SHARD_RELEASE:
+            case SHARD_DECIDE:
+            case SHARD_STATUS:
+                node.getShardCoordinator().handleRequest(paxosMsg);
+                break;
+            case SHARD_VOTE:
+                node.getShardCoordinator().handleVote(paxosMsg);
+                break;
+            default:
+                break;
         }
     }
 }
@@ -2,6 +2,10 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.logging.Logger;
 
@@ -32,8 +36,22 @@ public class Main {
             wuuBernsteinMain(nodeID);
         }
 
-        if(algo.equals("paxos")) {
-            paxosMain(nodeID);
+        if(algo.equals("paxos") || algo.equals("replica")) {
+            paxosMain(nodeID, Membership.addressOf(nodeID).getPort(), 0);
+        }
+
+        if(algo.equals("join")) {
+            paxosMain(nodeID, Integer.parseInt(args[2]), 0);
+        }
+
+        if(algo.equals("shard")) {
+            int shard = Integer.parseInt(args[2]);
+            Membership.useShard(shard);
+            paxosMain(nodeID, Membership.addressOf(nodeID).getPort(), shard);
+        }
+
+        if(algo.equals("witness")) {
+            witnessMain(nodeID);
         }
 
     }
@@ -41,9 +59,31 @@ public class Main {
 
     public static void wuuBernsteinMain(int nodeID) {
 
-        int port = Constants.NODE_PORTS[nodeID];
-
         WuuNode node = new WuuNode(nodeID);
+        startWuuListener(node, nodeID);
+        FailureDetector.start(nodeID, Constants.NODE_PORTS[nodeID],
+                Main::wuuMembers);
+
+        while(true){
+            @SuppressWarnings("resource")
+            Scanner commandLine = new Scanner(System.in);
+
+            String input = null;
+
+            if (commandLine.hasNextLine()) {
+                input = commandLine.nextLine();
+            }
+            System.out.println(input);
+            handleCommandWuu(input, node);
+        }
+    }
+
+    /**
+     * startWuuListener: serve the Wuu-Bernstein port of nodeID for node
+     */
+    public static void startWuuListener(WuuNode node, int nodeID) {
+
+        int port = Constants.NODE_PORTS[nodeID];
 
         Runnable listenThread = new Runnable(){
             public synchronized void run() {
@@ -70,28 +110,30 @@ public class Main {
             }
         };
         new Thread(listenThread).start();
+    }
 
-        while(true){
-            @SuppressWarnings("resource")
-            Scanner commandLine = new Scanner(System.in);
-
-            String input = null;
-
-            if (commandLine.hasNextLine()) {
-                input = commandLine.nextLine();
-            }
-            System.out.println(input);
-            handleCommandWuu(input, node);
+    /**
+     * wuuMembers: the Wuu-Bernstein nodes by id
+     */
+    private static Map<Integer, NodeAddress> wuuMembers() {
+        Map<Integer, NodeAddress> members = new HashMap<>();
+        for (int k = 0; k < Constants.TOTAL_NODES; k++) {
+            members.put(k, new NodeAddress(Constants.NODE_HOSTNAMES[k],
+                    Constants.NODE_PORTS[k]));
         }
+        return members;
     }
 
-    public static void paxosMain(int nodeID) {
+    public static void paxosMain(int nodeID, int port, int shard) {
 
         LG.info("Node id = " + nodeID);
-        PaxosNode node = new PaxosNode(nodeID);
+        Map<String, PaxosNode> nodes = new LinkedHashMap<>();
+        for (String namespace: Constants.NAMESPACES) {
+            nodes.put(namespace, new PaxosNode(nodeID, shard, namespace));
+        }
+        PaxosNode node = nodes.get(Constants.DEFAULT_NAMESPACE);
 
-        /* Create listen thread */
-        int port = Constants.NODEID_ADDR_MAP.get(nodeID).getPort();
+        /* Create listen thread, shared by all namespaces */
         ServerSocket server = null;
         try {
             server = new ServerSocket(port);
@@ -99,24 +141,67 @@ public class Main {
             LG.severe("Cannot create server socket");
             exit(1);
         }
-        ListenChannel listenThread = new ListenChannel(server, node);
+        ListenChannel listenThread = new ListenChannel(server, nodes);
         listenThread.start();
+        FailureDetector.start(nodeID, port, Membership::members);
+        if (node.getSoloLog() != null) {
+            startWuuListener(node.getSoloLog(), nodeID);
+        }
 
         /* Pick up records that might have been missed before node start */
-        node.updateMissingEvents();
+        PaxosNode.updateMissingEvents(nodes.values());
 
         /* Start to take user input */
         Scanner sc = new Scanner(System.in);
         boolean endProgram = false;
         while (sc.hasNextLine() && endProgram == false) {
             String input = sc.nextLine();
-            handleCommand(input, node);
+            Scanner words = new Scanner(input);
+            String operation = words.hasNext() ? words.next() : "";
+            if (operation.equals("use")) {
+                /* Switch the calendar the next commands apply to */
+                String namespace = words.hasNext() ? words.next() : "";
+                if (nodes.containsKey(namespace)) {
+                    node = nodes.get(namespace);
+                    System.out.println("Using namespace " + namespace);
+                } else {
+                    System.out.println("Unknown namespace, one of " +
+                            nodes.keySet());
+                }
+            } else if (operation.equals("exit")) {
+                for (PaxosNode n: nodes.values()) {
+                    n.close();
+                }
+                exit(0);
+            } else {
+                handleCommand(input, node);
+            }
         }
         System.out.println("Ending the program");
-        node.close();
+        for (PaxosNode n: nodes.values()) {
+            n.close();
+        }
         System.out.println("Program ended");
     }
 
+    public static void witnessMain(int nodeID) {
+
+        LG.info("Witness node id = " + nodeID);
+        WitnessNode node = new WitnessNode(nodeID);
+
+        int port = Membership.addressOf(nodeID).getPort();
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(port);
+        } catch (Exception e) {
+            LG.severe("Cannot create server socket");
+            exit(1);
+        }
+        FailureDetector.start(nodeID, port, Membership::members);
+        System.out.println("Witness " + nodeID + " started");
+        node.serve(server);
+    }
+
     private static void handleCommand(String input, PaxosNode node) {
         Scanner sc = new Scanner(input);
         String operation = null;
@@ -126,6 +211,12 @@ public class Main {
         } else {
             return;
         }
+        if (node.isReplica() && (operation.equals("add") ||
+                operation.equals("delete") || operation.equals("addnode") ||
+                operation.equals("removenode"))) {
+            System.out.println("Read replica does not accept writes");
+            return;
+        }
         switch (operation) {
             case "add":
                 handleAddCommand(sc, node);
@@ -136,6 +227,18 @@ public class Main {
             case "view":
                 handleViewCommand(sc, node);
                 break;
+            case "addnode":
+                handleAddNodeCommand(sc, node);
+                break;
+            case "removenode":
+                handleRemoveNodeCommand(sc, node);
+                break;
+            case "members":
+                System.out.println(Membership.latest());
+                break;
+            case "stats":
+                System.out.print(WireStats.report());
+                break;
             case "exit":
                 node.close();
                 exit(0);
@@ -213,6 +316,9 @@ public class Main {
                 node.displayCalendarByAppt(node.getNodeId());
             }
         }
+        else if (operation.equals("stats")) {
+            System.out.print(WireStats.wuuReport());
+        }
         else {
             handleInvalidCommand();
         }
@@ -243,13 +349,56 @@ public class Main {
     }
 
     private static void handleViewCommand(Scanner sc, PaxosNode node) {
-        if (sc.hasNext()) {
+        if (!node.awaitReadable()) {
+            System.out.println("Could not reach a majority, calendar may " +
+                    "be stale");
+        }
+        if (sc.hasNext() || node.getNodeId() >= Constants.NODE_COUNT) {
             node.displayCalendarAllByAppt();
         } else {
             node.displayCalendarByAppt(node.getNodeId());
         }
     }
 
+    private static void handleAddNodeCommand(Scanner sc, PaxosNode node) {
+        if (!sc.hasNextInt()) {
+            System.out.println("Invalid node id");
+            return;
+        }
+        int id = sc.nextInt();
+        if (!sc.hasNext()) {
+            System.out.println("Invalid node ip");
+            return;
+        }
+        String ip = sc.next();
+        if (!sc.hasNextInt()) {
+            System.out.println("Invalid node port");
+            return;
+        }
+        int port = sc.nextInt();
+        String error = node.addMember(id, new NodeAddress(ip, port));
+        if (error != null) {
+            System.out.println(error);
+        } else {
+            System.out.println("Node " + id + " added as learner, it " +
+                    "becomes a voter once caught up");
+        }
+    }
+
+    private static void handleRemoveNodeCommand(Scanner sc, PaxosNode node) {
+        if (!sc.hasNextInt()) {
+            System.out.println("Invalid node id");
+            return;
+        }
+        int id = sc.nextInt();
+        String error = node.removeMember(id);
+        if (error != null) {
+            System.out.println(error);
+        } else {
+            System.out.println("Node " + id + " removed");
+        }
+    }
+
     private static void handleAddCommand(Scanner sc, PaxosNode node) {
         String apptName = null;
         if (sc.hasNext()) {
@@ -292,12 +441,21 @@ public class Main {
         } else {
             System.out.println("Invalid appointment participant");
         }
+        for (Integer p: participants) {
+            if (!Constants.hasCalendar(p)) {
+                System.out.println("Node " + p + " has no calendar");
+                return;
+            }
+        }
 
         boolean addApptResult = node.addAppointment(apptName, day, start, end,
                 participants);
         if (!addApptResult) {
             System.out.println("Appointment cannot be added because of " +
                     "conflicts");
+        } else if (node.isSpeculative()) {
+            System.out.println("Appointment \"" + apptName + "\" added, " +
+                    "pending confirmation");
         } else {
             System.out.println("Appointment \"" + apptName + "\" added");
         }
@@ -308,12 +466,22 @@ public class Main {
     }
 
     /**
-     * parseArgs: allows one and only one argument as nodeId
+     * parseArgs: allows one and only one argument as nodeId, followed by the
+     * listen port for a node joining the cluster or by the shard id
      */
     private static int parseArgs(String[] args) throws Exception {
-        if (args.length != 2) {
+        boolean join = args[0].equals("join");
+        boolean shard = args[0].equals("shard");
+        if (args.length != (join || shard ? 3 : 2)) {
             throw new Exception("Incorrect argument number");
         }
+        if (join && !isNonnegInteger(args[2], 10)) {
+            throw new Exception("Invalid port");
+        }
+        if (shard && (!isNonnegInteger(args[2], 10) ||
+                Integer.parseInt(args[2]) >= Constants.SHARD_COUNT)) {
+            throw new Exception("Invalid shard id");
+        }
 
         String nodeIdStr = args[1];
         if (!isNonnegInteger(nodeIdStr, 10)) {
@@ -321,7 +489,20 @@ public class Main {
         }
 
         int nodeId = Integer.parseInt(nodeIdStr);
-        if (Constants.NODEID_ADDR_MAP.size() <= nodeId) {
+        if (join) {
+            if (Constants.isReplica(nodeId)) {
+                throw new Exception("Invalid joining nodeId");
+            }
+        } else if (shard) {
+            if (!Constants.SHARD_ADDR_MAPS.get(Integer.parseInt(args[2]))
+                    .containsKey(nodeId)) {
+                throw new Exception("Invalid nodeId for shard");
+            }
+        } else if (args[0].equals("replica")) {
+            if (!Constants.isReplica(nodeId)) {
+                throw new Exception("Invalid replica nodeId");
+            }
+        } else if (Constants.NODEID_ADDR_MAP.size() <= nodeId) {
             throw new Exception("Invalid nodeId");
         }
         return nodeId;
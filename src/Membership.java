@@ -0,0 +1,131 @@
+/**
+ * Membership class: the cluster configuration in force for every log slot.
+ * The configuration at slot 0 is Constants.NODEID_ADDR_MAP. A RECONFIGURE
+ * event chosen in slot i governs every slot from i + 1 on. A proposer only
+ * proposes in the first slot it has not learned, so the configuration of
+ * that slot is always known when the quorum is counted.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Membership {
+    /* First slot a configuration governs -> configuration */
+    private static final TreeMap<Integer, ClusterConfig> CONFIGS =
+            new TreeMap<>();
+
+    static {
+        CONFIGS.put(0, new ClusterConfig(Constants.NODEID_ADDR_MAP,
+                new HashMap<>()));
+    }
+
+    /**
+     * forSlot: configuration that governs logId
+     * @param logId negative for the latest configuration
+     * @return
+     */
+    public static synchronized ClusterConfig forSlot(int logId) {
+        if (logId < 0) {
+            return CONFIGS.lastEntry().getValue();
+        }
+        return CONFIGS.floorEntry(logId).getValue();
+    }
+
+    /**
+     * useShard: start from the initial voters of the given Paxos group
+     * instead of Constants.NODEID_ADDR_MAP. Must be called before the node
+     * is created.
+     * @param shardId
+     */
+    public static synchronized void useShard(int shardId) {
+        CONFIGS.clear();
+        CONFIGS.put(0, new ClusterConfig(
+                Constants.SHARD_ADDR_MAPS.get(shardId), new HashMap<>()));
+    }
+
+    public static ClusterConfig latest() {
+        return forSlot(-1);
+    }
+
+    /**
+     * install: the configuration chosen in slot logId governs the slots
+     * after it
+     * @param logId
+     * @param config
+     */
+    public static synchronized void install(int logId, ClusterConfig config) {
+        CONFIGS.put(logId + 1, config);
+    }
+
+    public static boolean isVoter(int logId, int nodeId) {
+        return forSlot(logId).isVoter(nodeId);
+    }
+
+    /**
+     * addressOf: address of a member of any known configuration, or of a
+     * learner replica
+     * @param nodeId
+     * @return
+     */
+    public static synchronized NodeAddress addressOf(int nodeId) {
+        for (ClusterConfig config: CONFIGS.descendingMap().values()) {
+            NodeAddress addr = config.addressOf(nodeId);
+            if (addr != null) {
+                return addr;
+            }
+        }
+        return Constants.REPLICA_ADDR_MAP.get(nodeId);
+    }
+
+    /**
+     * recipients: voters of the configuration of logId and of the latest
+     * configuration, plus the latest learners when withLearners is set
+     * @param logId
+     * @param withLearners
+     * @return
+     */
+    public static synchronized Map<Integer, NodeAddress> recipients(
+            int logId, boolean withLearners) {
+        Map<Integer, NodeAddress> result = new TreeMap<>(
+                forSlot(logId).getVoters());
+        ClusterConfig latest = latest();
+        result.putAll(latest.getVoters());
+        if (withLearners) {
+            result.putAll(latest.getLearners());
+        }
+        return result;
+    }
+
+    /**
+     * members: every node of the latest configuration and the learner
+     * replicas, the nodes the failure detector probes
+     * @return
+     */
+    public static Map<Integer, NodeAddress> members() {
+        Map<Integer, NodeAddress> result = recipients(-1, true);
+        result.putAll(Constants.REPLICA_ADDR_MAP);
+        return result;
+    }
+
+    /**
+     * reconfigError: the features that assume a fixed set of voters
+     * @return error message, or null if reconfiguration is allowed
+     */
+    public static String reconfigError() {
+        if (Constants.ROTATING_SLOTS_ENABLED) {
+            return "Membership is fixed with ROTATING_SLOTS_ENABLED";
+        }
+        if (Constants.GENERALIZED_COMMIT_ENABLED) {
+            return "Membership is fixed with GENERALIZED_COMMIT_ENABLED";
+        }
+        if (!Constants.WITNESS_NODE_IDS.isEmpty()) {
+            return "Membership is fixed when witness nodes are configured";
+        }
+        if (Constants.NAMESPACES.size() > 1) {
+            /* The namespaces share the peers but not the log */
+            return "Membership is fixed with several namespaces";
+        }
+        return null;
+    }
+}
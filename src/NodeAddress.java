@@ -2,7 +2,12 @@
  * NodeAddress class
  */
 
-public class NodeAddress {
+import java.io.Serializable;
+
+public class NodeAddress implements Serializable {
+    /* The computed default, so stored configurations still deserialize */
+    private static final long serialVersionUID = 2255655888527120559L;
+
     private String ip;
     private int port;
 
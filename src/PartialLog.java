@@ -0,0 +1,73 @@
+/**
+ * PartialLog class: the partial log PL of a Wuu-Bernstein node, indexed by
+ * originating node and ordered by event clock. Node k has learned an event
+ * of origin j iff T[k][j] >= its clock, so the events k lacks are, for each
+ * origin, the suffix above T[k][j]. Not thread-safe, callers hold the
+ * node's lock.
+ */
+
+import java.io.Serializable;
+import java.util.*;
+
+public class PartialLog implements Serializable {
+    /* Saved in the node checkpoint, the computed default keeps those valid */
+    private static final long serialVersionUID = 9101416801526271605L;
+
+    /* Origin node -> event clock -> event */
+    private final List<TreeMap<Integer, EventRecord>> byNode;
+
+    /* Constructor */
+    public PartialLog(int num_nodes) {
+        byNode = new ArrayList<>();
+        for (int i = 0; i < num_nodes; ++i) {
+            byNode.add(new TreeMap<>());
+        }
+    }
+
+    public void add(EventRecord eR) {
+        byNode.get(eR.getERNodeId()).put(eR.getERClock(), eR);
+    }
+
+    public void addAll(Collection<EventRecord> eRs) {
+        for (EventRecord eR: eRs) {
+            add(eR);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (TreeMap<Integer, EventRecord> events: byNode) {
+            size += events.size();
+        }
+        return size;
+    }
+
+    /**
+     * unknownTo: NP for node k
+     * @param T time table
+     * @param k
+     * @return the events k has not learned according to T
+     */
+    public HashSet<EventRecord> unknownTo(int[][] T, int k) {
+        HashSet<EventRecord> result = new HashSet<>();
+        for (int j = 0; j < byNode.size(); ++j) {
+            result.addAll(byNode.get(j).tailMap(T[k][j], false).values());
+        }
+        return result;
+    }
+
+    /**
+     * removeKnownToAll: drop the events every node has learned, the prefix
+     * up to the smallest T[s][j] for each origin j
+     * @param T time table
+     */
+    public void removeKnownToAll(int[][] T) {
+        for (int j = 0; j < byNode.size(); ++j) {
+            int known = Integer.MAX_VALUE;
+            for (int[] row: T) {
+                known = Math.min(known, row[j]);
+            }
+            byNode.get(j).headMap(known, true).clear();
+        }
+    }
+}
@@ -2,9 +2,13 @@
  * PaxosMessage class
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class PaxosMessage implements Serializable {
@@ -17,17 +21,33 @@ public class PaxosMessage implements Serializable {
     private int acceptedId;
     private int nodeId;
     private EventRecord er;
+    private int endLogId;
+    private String instanceId;
+    private ArrayList<String> deps;
+    /* Paxos group of the sender, for messages between groups */
+    private int shardId;
+    /* Calendar namespace the message belongs to */
+    private String namespace;
 
     /* Constructor */
     public PaxosMessage(PaxosMessageType tp, int p_id, int log_id,
                         int accepted_id, int node_id,
                         EventRecord event_record) {
+        this(tp, p_id, log_id, accepted_id, node_id, event_record, log_id);
+    }
+
+    /* Constructor for messages covering the log ids [log_id, end_log_id] */
+    public PaxosMessage(PaxosMessageType tp, int p_id, int log_id,
+                        int accepted_id, int node_id,
+                        EventRecord event_record, int end_log_id) {
         msgType = tp;
         pId = p_id;
         logId = log_id;
         acceptedId = accepted_id;
         nodeId = node_id;
         er = event_record;
+        endLogId = end_log_id;
+        namespace = Constants.DEFAULT_NAMESPACE;
 
         LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
     }
@@ -57,39 +77,119 @@ public class PaxosMessage implements Serializable {
         return er;
     }
 
+    public int getEndLogId() {
+        return endLogId;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public ArrayList<String> getDeps() {
+        return deps;
+    }
+
+    public int getShardId() {
+        return shardId;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /* Setters */
+    public void setShard(int shard_id) {
+        shardId = shard_id;
+    }
+
+    public void setNamespace(String namespace_id) {
+        namespace = namespace_id;
+    }
+
+    public void setInstance(String instance_id, ArrayList<String> instance_deps) {
+        instanceId = instance_id;
+        deps = instance_deps;
+    }
+
+    /**
+     * sendToAll: serialize once and send to the voters of this log slot and
+     * of the latest configuration, skipping witness nodes for message types
+     * they do not handle. Committed events are also streamed to the
+     * learners and the learner replicas. Nodes the failure detector reports
+     * down are sent to last, it may be wrong about them. Witnesses get a
+     * full record with a digest as digest-only.
+     */
     public void sendToAll() {
-        for (NodeAddress addr: Constants.NODEID_ADDR_MAP.values()) {
+        byte[] bytes = toBytes();
+        byte[] witnessBytes = bytes;
+        if (er != null && er.getDigest() != null && !er.isDigestOnly() &&
+                !Constants.WITNESS_NODE_IDS.isEmpty()) {
+            EventRecord full = er;
+            er = EventRecord.digestOnly(full, full.getERNodeId());
+            witnessBytes = toBytes();
+            er = full;
+        }
+        if (bytes == null || witnessBytes == null) {
+            return;
+        }
+        List<Map.Entry<Integer, NodeAddress>> targets = new ArrayList<>();
+        for (Map.Entry<Integer, NodeAddress> pair: Membership.recipients(
+                logId, msgType.reachesReplica()).entrySet()) {
+            if (Constants.isWitness(pair.getKey()) &&
+                    !msgType.reachesWitness()) {
+                continue;
+            }
+            targets.add(pair);
+        }
+        if (msgType == PaxosMessageType.LEARNER_NOTICE ||
+                msgType == PaxosMessageType.COMMIT) {
+            targets.addAll(Constants.REPLICA_ADDR_MAP.entrySet());
+        }
+        targets.sort(Comparator.comparing(
+                pair -> FailureDetector.isDead(pair.getKey())));
+        for (Map.Entry<Integer, NodeAddress> pair: targets) {
+            NodeAddress addr = pair.getValue();
             LG.info("send to ip: " + addr.getIp() + ", port: " +
                     addr.getPort());
-            sendToAddr(addr.getIp(), addr.getPort());
+            sendBytes(Constants.isWitness(pair.getKey()) ? witnessBytes :
+                    bytes, addr.getIp(), addr.getPort());
         }
     }
 
-    public void sendToAddr(String ip, int port) {
-        /*
-        // demo purpose
-        try {
-            Thread.sleep(200);
-        } catch (Exception e) {
-            LG.warning("sendToAddr sleep failed " + e);
-        } */
-        Socket socket = null;
-        ObjectOutputStream oos = null;
+    /**
+     * sendToAddr
+     * @param ip
+     * @param port
+     * @return false if the peer cannot be reached
+     */
+    public boolean sendToAddr(String ip, int port) {
+        byte[] bytes = toBytes();
+        return bytes != null && sendBytes(bytes, ip, port);
+    }
+
+    private byte[] toBytes() {
         try {
-            socket = new Socket(ip, port);
-            oos = new ObjectOutputStream(socket.getOutputStream());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
             oos.writeObject(this);
+            oos.close();
+            return bytes.toByteArray();
         } catch (Exception e) {
-            LG.warning("sendToAddr " + ip + ", port: " + port +
-                    ", failed " + e);
-            return;
+            LG.warning("Cannot serialize " + msgType + " message " + e);
+            return null;
         }
+    }
 
-        try {
-            oos.close();
-            socket.close();
-        } catch (Exception e) {
-            LG.warning("oos or socket close failed. " + e);
+    /**
+     * sendBytes: queue bytes on the link to ip:port, which batches them with
+     * the other messages of this process for that peer
+     */
+    private boolean sendBytes(byte[] bytes, String ip, int port) {
+        if (!PeerLink.to(ip, port).send(bytes)) {
+            LG.warning("sendToAddr " + ip + ", port: " + port + ", failed");
+            return false;
         }
+        WireStats.recordSent(msgType, bytes.length);
+        return true;
     }
 }
@@ -8,5 +8,57 @@ public enum PaxosMessageType {
     PROPOSE,
     ACCEPT,
     LEARNER_REQUEST,
-    LEARNER_NOTICE
+    LEARNER_NOTICE,
+    LEASE_REQUEST,
+    LEASE_GRANT,
+    READ_INDEX_REQUEST,
+    READ_INDEX_REPLY,
+    PRE_ACCEPT,
+    PRE_ACCEPT_OK,
+    COMMIT,
+    SLOW_PATH_NOTICE,
+    COMMIT_REQUEST,
+    COMMIT_ACK,
+    PAYLOAD,
+    PAYLOAD_REQUEST,
+    PAYLOAD_APPLIED,
+    SHARD_PREPARE,
+    SHARD_VOTE,
+    SHARD_RELEASE,
+    SHARD_DECIDE,
+    SHARD_STATUS;
+
+    /**
+     * reachesReplica: whether a learner replica handles this message type.
+     * LEARNER_NOTICE and COMMIT are also broadcast to the replicas.
+     * @return
+     */
+    public boolean reachesReplica() {
+        switch (this) {
+            case LEARNER_NOTICE:
+            case COMMIT:
+            case PAYLOAD:
+            case READ_INDEX_REPLY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * reachesWitness: whether a witness node handles this message type, the
+     * other types are not sent to witnesses
+     * @return
+     */
+    public boolean reachesWitness() {
+        switch (this) {
+            case PREPARE:
+            case PROPOSE:
+            case LEASE_REQUEST:
+            case READ_INDEX_REQUEST:
+                return true;
+            default:
+                return false;
+        }
+    }
 }
@@ -4,6 +4,9 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
@@ -13,34 +16,157 @@ public class PaxosNode {
             PaxosNode.class.getName());
 
     private int nodeId;
+    private String namespace;
     private Lock lock = new ReentrantLock();
     private Map<String, Appointment> apptIdMap;
     private String[][][] globalTimetable;
     private ArrayList<EventRecord> allEvents;
+    private AtomicReference<CalendarSnapshot> snapshot;
+    private TreeMap<Integer, EventRecord> pendingEvents;
+    private GapRepairer repairer;
+    /* Shared by all namespaces, it holds no state besides the fork-join pool */
+    private static final ApplyEngine APPLY_ENGINE = new ApplyEngine();
+    /* Cross-shard prepares holding their slots, by appointment id */
+    private Map<String, EventRecord> prepared;
+    /* First outcome logged for each cross-shard appointment */
+    private Map<String, Boolean> outcomes;
 
     private Proposer proposer;
     private Acceptor accepter;
     private Learner learner;
+    private ReadLease readLease;
+    private SlotOwnership slotOwnership;
+    private GeneralizedCommit generalized;
+    private PayloadStore payloadStore;
+    private SpeculativeOverlay overlay;
+    private ShardCoordinator shardCoordinator;
+    private WuuNode soloLog;
+    private Thread promotion;
 
     private int localApptId;
 
     /* Constructor: initialize the environment */
     public PaxosNode(int id) {
+        this(id, 0);
+    }
+
+    /* Constructor for a node of the Paxos group of the given shard */
+    public PaxosNode(int id, int shard) {
+        this(id, shard, Constants.DEFAULT_NAMESPACE);
+    }
+
+    /* Constructor for the calendar of the given namespace */
+    public PaxosNode(int id, int shard, String namespace_id) {
         LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
         nodeId = id;
+        namespace = namespace_id;
+        if (Constants.SHARD_COUNT > 1) {
+            shardCoordinator = new ShardCoordinator(this, shard);
+        }
+        String configError = Constants.checkWitnessConfig();
+        if (configError == null) {
+            configError = Membership.latest().quorumError();
+        }
+        if (configError != null) {
+            LG.severe(configError + ", exit");
+            System.exit(1);
+        }
+        if (Constants.GENERALIZED_COMMIT_ENABLED) {
+            generalized = new GeneralizedCommit(this);
+        }
         try {
             deserializeEvents();
             deserializeCalendar();
+            if (generalized != null) {
+                generalized.load();
+            }
         } catch (Exception e) {
             LG.severe("Failed to deserialize past events/calendar, exit");
             System.exit(1);
         }
-        proposer = new Proposer(nodeId);
+        pendingEvents = new TreeMap<>();
+        int firstHole = allEvents.indexOf(null);
+        if (firstHole >= 0) {
+            /* Logs written before gap repair may contain null placeholders */
+            for (int i = firstHole; i < allEvents.size(); ++i) {
+                if (allEvents.get(i) != null) {
+                    pendingEvents.put(i, allEvents.get(i));
+                }
+            }
+            allEvents.subList(firstHole, allEvents.size()).clear();
+        }
+        for (int i = 0; i < allEvents.size(); ++i) {
+            if (allEvents.get(i).getOperation() ==
+                    EventOperation.RECONFIGURE) {
+                Membership.install(i, allEvents.get(i).getConfig());
+            }
+        }
+        prepared = new ConcurrentHashMap<>();
+        outcomes = new ConcurrentHashMap<>();
+        List<GeneralizedCommit.FastCommit> fastCommits = generalized == null ?
+                new ArrayList<>() : generalized.getFastCommits();
+        if (!allEvents.isEmpty() || !fastCommits.isEmpty()) {
+            /* Rebuild the calendar by replaying the learned log */
+            globalTimetable = new String[Constants.NODE_COUNT]
+                    [Constants.TOTAL_DAY][Constants.SLOT_PER_DAY];
+            apptIdMap = new HashMap<>();
+            replayCalendar(fastCommits);
+        }
+        snapshot = new AtomicReference<>(CalendarSnapshot.of(
+                allEvents.size() - 1, apptIdMap, globalTimetable));
+        proposer = new Proposer(nodeId, namespace);
         accepter = new Acceptor(nodeId);
         learner = new Learner(this);
+        repairer = new GapRepairer(nodeId, namespace);
+        if (!pendingEvents.isEmpty()) {
+            for (int i = allEvents.size(); i < pendingEvents.lastKey(); ++i) {
+                if (!pendingEvents.containsKey(i)) {
+                    repairer.reportHole(i);
+                }
+            }
+        }
+        repairer.start();
+        readLease = new ReadLease(this);
+        if (readLease.isLeaseHolder()) {
+            readLease.start();
+        }
+        if (Constants.ROTATING_SLOTS_ENABLED && !isReplica()) {
+            slotOwnership = new SlotOwnership(this, allEvents.size());
+            slotOwnership.start();
+        }
+        if (generalized != null) {
+            generalized.start();
+        }
+        if (Constants.DIGEST_CONSENSUS_ENABLED) {
+            payloadStore = new PayloadStore(this);
+            payloadStore.load();
+            for (int i = 0; i < allEvents.size(); ++i) {
+                if (allEvents.get(i).getDigest() != null) {
+                    payloadStore.onApplied(allEvents.get(i), i);
+                }
+            }
+            proposer.setPayloadStore(payloadStore);
+            payloadStore.start();
+        }
+        if (Constants.SPECULATIVE_APPLY_ENABLED) {
+            overlay = new SpeculativeOverlay(this);
+            overlay.start();
+        }
+        if (shardCoordinator != null) {
+            shardCoordinator.start();
+        }
+        if (Constants.HYBRID_ROUTING_ENABLED && Constants.SHARD_COUNT == 1 &&
+                namespace.equals(Constants.DEFAULT_NAMESPACE) &&
+                !isReplica()) {
+            /* The Wuu-Bernstein ports serve a single calendar */
+            soloLog = new WuuNode(nodeId);
+        }
 
         lock.lock();
         localApptId = allEvents.size() + 1;
+        if (Membership.latest().isLearner(nodeId)) {
+            startPromotion();
+        }
         lock.unlock();
     }
 
@@ -51,6 +177,9 @@ public class PaxosNode {
         try {
             serializeEvents();
             serializeCalendar();
+            if (generalized != null) {
+                generalized.save();
+            }
         } catch (Exception e) {
             LG.warning("Serialization failure " + e);
         }
@@ -62,18 +191,46 @@ public class PaxosNode {
         return nodeId;
     }
 
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * storageName: file name of the given store of this node. The default
+     * namespace keeps the names used before namespaces existed.
+     * @param base
+     * @return
+     */
+    public String storageName(String base) {
+        String name = nodeId + "_" + base;
+        return namespace.equals(Constants.DEFAULT_NAMESPACE) ? name :
+                namespace + "_" + name;
+    }
+
+    /**
+     * isReplica: a learner-only replica never proposes or votes, it only
+     * applies the committed log and serves reads
+     * @return
+     */
+    public boolean isReplica() {
+        return Constants.isReplica(nodeId);
+    }
+
+    /**
+     * getSnapshot: the latest published calendar version. Never blocks and
+     * never observes a partially applied event.
+     * @return
+     */
+    public CalendarSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
     public Map<String, Appointment> getApptIdMap() {
-        lock.lock();
-        Map<String, Appointment> result = apptIdMap;
-        lock.unlock();
-        return result;
+        return snapshot.get().getApptIdMap();
     }
 
     public String[][][] getGlobalTimetable() {
-        lock.lock();
-        String[][][] result = globalTimetable;
-        lock.unlock();
-        return result;
+        return snapshot.get().getTimetable();
     }
 
     public ArrayList<EventRecord> getAllEvents() {
@@ -95,56 +252,222 @@ public class PaxosNode {
         return learner;
     }
 
+    public ReadLease getReadLease() {
+        return readLease;
+    }
+
+    /**
+     * getSlotOwnership
+     * @return null unless Constants.ROTATING_SLOTS_ENABLED
+     */
+    public WuuNode getSoloLog() {
+        return soloLog;
+    }
+
+    public ShardCoordinator getShardCoordinator() {
+        return shardCoordinator;
+    }
+
+    public SlotOwnership getSlotOwnership() {
+        return slotOwnership;
+    }
+
+    /**
+     * getGeneralizedCommit
+     * @return null unless Constants.GENERALIZED_COMMIT_ENABLED
+     */
+    public GeneralizedCommit getGeneralizedCommit() {
+        return generalized;
+    }
+
+    /**
+     * getPayloadStore
+     * @return null unless Constants.DIGEST_CONSENSUS_ENABLED
+     */
+    public PayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
+    /**
+     * getFirstMissingLogId: the first log id that blocks learned events from
+     * being applied
+     * @return Constants.NULL_ID if no learned event is waiting
+     */
+    public int getFirstMissingLogId() {
+        lock.lock();
+        int result = pendingEvents.isEmpty() ? Constants.NULL_ID :
+                allEvents.size();
+        lock.unlock();
+        return result;
+    }
+
     /**** Setters ****/
 
     /**
-     * addToAllEvents: add given eventRecord to given index. If there is a gap
-     * between given index and current allEvent size, send out request for the
-     * missing events
+     * addToAllEvents: buffer given eventRecord at given index. If there is a
+     * gap between given index and current allEvent size, hand the missing
+     * ids to the gap repairer. Buffered events are appended to allEvents and
+     * applied to the calendar strictly in log order as soon as the prefix up
+     * to them is complete.
      * @param index
      * @param er
-     * @return
+     * @return false if the index has already been learned
      */
     public boolean addToAllEvents(int index, EventRecord er) {
         lock.lock();
-        while (allEvents.size() < index) {
-            int missingLogId = allEvents.size();
-            allEvents.add(null);
-            requestMissingEventsId(missingLogId);
+        try {
+            if (index < allEvents.size()) {
+                return false;
+            }
+            EventRecord buffered = pendingEvents.get(index);
+            if (buffered != null) {
+                if (!buffered.isDigestOnly() || er.isDigestOnly()) {
+                    return false;
+                }
+                /* From a peer's log, for a payload that could not be had */
+                pendingEvents.put(index, er);
+                repairer.resolve(index);
+                drainPendingEvents();
+                return true;
+            }
+            pendingEvents.put(index, er);
+            repairer.resolve(index);
+            if (slotOwnership != null) {
+                slotOwnership.onLearned(index);
+            }
+            for (int i = allEvents.size(); i < index; ++i) {
+                if (!pendingEvents.containsKey(i)) {
+                    repairer.reportHole(i);
+                }
+            }
+            drainPendingEvents();
+            return true;
+        } finally {
+            lock.unlock();
         }
-        if (allEvents.size() == index) {
-            allEvents.add(er);
+    }
+
+    /**
+     * applyFastCommit: apply an event committed on the generalized fast path.
+     * It commutes with every event in flight, so it is applied right away,
+     * then log events that were waiting for it are drained.
+     * @param instanceId
+     * @param er
+     */
+    public void applyFastCommit(String instanceId, EventRecord er) {
+        lock.lock();
+        try {
+            if (!generalized.markApplied(instanceId, er,
+                    allEvents.size() - 1)) {
+                return;
+            }
+            List<EventRecord> ers = new ArrayList<>();
+            ers.add(er);
+            updateCalendar(allEvents.size() - 1, ers);
+            drainPendingEvents();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * repairLogId: request the log line logId from the peers' logs
+     * @param logId
+     */
+    public void repairLogId(int logId) {
+        repairer.reportHole(logId);
+    }
+
+    /**
+     * onPayloadArrived: a payload the log was waiting for has been received
+     */
+    public void onPayloadArrived() {
+        lock.lock();
+        try {
+            drainPendingEvents();
+        } finally {
             lock.unlock();
-            return true;
         }
-        lock.unlock();
-        return false;
     }
 
-    private PaxosMessage generateLearnerRequest(int log_id) {
+    /**
+     * drainPendingEvents: append the buffered events that complete the log
+     * prefix to allEvents and apply them. A log event waits for its payload
+     * when it is digest-only and for the fast-path commits it depends on.
+     * Caller must hold lock.
+     */
+    private void drainPendingEvents() {
+        List<EventRecord> ready = new ArrayList<>();
+        while (pendingEvents.containsKey(allEvents.size())) {
+            EventRecord next = pendingEvents.get(allEvents.size());
+            if (payloadStore != null) {
+                next = payloadStore.resolve(next, allEvents.size());
+                if (next == null) {
+                    break;
+                }
+            } else if (next.isDigestOnly()) {
+                LG.warning("Digest-only event without payload store");
+                break;
+            }
+            if (generalized != null && !generalized.depsApplied(next)) {
+                break;
+            }
+            pendingEvents.remove(allEvents.size());
+            if (next.getOperation() == EventOperation.RECONFIGURE) {
+                Membership.install(allEvents.size(), next.getConfig());
+                LG.info("Configuration from log id " + (allEvents.size() + 1) +
+                        ": " + next.getConfig());
+                if (next.getConfig().isLearner(nodeId)) {
+                    startPromotion();
+                }
+            }
+            allEvents.add(next);
+            ready.add(next);
+            if (payloadStore != null && next.getDigest() != null) {
+                payloadStore.onApplied(next, allEvents.size() - 1);
+            }
+        }
+        if (!ready.isEmpty()) {
+            try {
+                updateCalendar(allEvents.size() - 1, ready);
+            } catch (Exception e) {
+                LG.warning("updateCalendar failed up to log id " +
+                        (allEvents.size() - 1) + " " + e);
+            }
+        }
+    }
+
+    private PaxosMessage generateLearnerRequest(int log_id, int end_log_id) {
         PaxosMessage requestMsg = new PaxosMessage(
                 PaxosMessageType.LEARNER_REQUEST, -1, log_id, -1,
-                nodeId, null);
+                nodeId, null, end_log_id);
+        requestMsg.setNamespace(namespace);
         return requestMsg;
     }
 
     /**
-     * updateCalendar: provide a method for Learner to call to update calendar
-     * with given EventRecord object that is already under consensus
-     * @param er
+     * updateCalendar: provide a method for addToAllEvents to call to update calendar
+     * with given EventRecord objects that are already under consensus, then
+     * publish a new calendar snapshot tagged with lastLogId. Events with
+     * disjoint participant days are applied in parallel by the ApplyEngine.
+     * @param lastLogId log id of the last event in ers
+     * @param ers events in log order
      */
-    public void updateCalendar(EventRecord er) {
-        Appointment appt = er.getAppointment();
-        // System.out.println("appt = " + appt);
-        switch (er.getOperation()) {
-            case ADD:
-                insertAppointment(appt);
-                break;
-            case DELETE:
-                removeAppointment(appt);
-                break;
-            default:
-                break;
+    public void updateCalendar(int lastLogId, List<EventRecord> ers) {
+        lock.lock();
+        try {
+            List<EventRecord> applied = new ArrayList<>();
+            Set<Integer> touched = applyLogged(ers, applied);
+            snapshot.set(snapshot.get().next(lastLogId, apptIdMap,
+                    globalTimetable, touched));
+            if (overlay != null) {
+                overlay.onApplied(applied);
+            }
+            if (soloLog != null) {
+                cancelConflictingSolo(applied);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -160,62 +483,396 @@ public class PaxosNode {
      */
     public boolean addAppointment(String name, int day, int start, int end,
                                    ArrayList<Integer> p) {
+        for (Integer participant: p) {
+            if (!Constants.hasCalendar(participant)) {
+                LG.warning("Node " + participant + " has no calendar");
+                return false;
+            }
+        }
+        if (soloLog != null && p.size() == 1 && p.get(0) == nodeId) {
+            /* Only this node books its own slots, no agreement is needed */
+            Appointment solo = new Appointment(null, name, day, start, end, p,
+                    nodeId);
+            if (hasConflict(solo)) {
+                return false;
+            }
+            soloLog.insertSolo(name, day, start, end);
+            return true;
+        }
         String newApptId = generateNewApptId();
         LG.info("Adding new appointment");
         Appointment newAppt = new Appointment(newApptId, name, day, start, end,
                 p, nodeId);
-        boolean addEventResult = false;
-        lock.lock();
-        int eventLogId = allEvents.size();
-        lock.unlock();
-
-        while (!hasConflict(newAppt) && addEventResult == false) {
-            LG.info("No conflict, start paxos");
-            EventRecord newEvent = new EventRecord(EventOperation.ADD, 0,
-                    nodeId, newAppt);
-            int newEventLogId = allEvents.size();
-            if (newEventLogId == eventLogId) {
-                proposer.incrementPrepareId();
-            } else {
-                eventLogId = newEventLogId;
-                proposer.restart();
+        EventRecord newEvent = new EventRecord(EventOperation.ADD, 0, nodeId,
+                newAppt);
+        if (shardCoordinator != null && !shardCoordinator.isLocal(newAppt)) {
+            return !hasConflict(newAppt) &&
+                    shardCoordinator.commitCrossShard(newEvent);
+        }
+        if (overlay != null) {
+            if (hasConflict(newAppt) || overlay.conflicts(newAppt)) {
+                return false;
             }
-            addEventResult = proposer.initEvent(newEventLogId, newEvent);
+            overlay.submit(newEvent);
+            return true;
+        }
+        if (generalized != null && !hasConflict(newAppt) &&
+                generalized.tryFastCommit(newEvent)) {
+            WireStats.recordCommit();
+            return true;
+        }
+        LG.info("Start paxos");
+        return commitAdd(newEvent);
+    }
+
+    /**
+     * commitAdd: commit an ADD event through the log unless it conflicts
+     * with the committed calendar. Under slot ownership a conflicting ADD
+     * in an earlier slot may still win when the log is applied.
+     * @param er
+     * @return true if er has been chosen and shows in the calendar
+     */
+    public boolean commitAdd(EventRecord er) {
+        Appointment appt = er.getAppointment();
+        if (!commitToLog(er, () -> !hasConflict(appt))) {
+            return false;
         }
+        if (slotOwnership == null) {
+            return true;
+        }
+        if (!awaitReadable()) {
+            LG.warning("Could not catch up after adding " + appt.getId());
+            return false;
+        }
+        return getSnapshot().getAppointment(appt.getId()) != null;
+    }
 
-        return addEventResult;
+    /**
+     * prepareLocal: log a cross-shard PREPARE, which locks the slots of its
+     * appointment in this group without showing it
+     * @param er PREPARE event
+     * @return true if this group holds the lock, its yes vote
+     */
+    public boolean prepareLocal(EventRecord er) {
+        Appointment appt = er.getAppointment();
+        String id = appt.getId();
+        commitToLog(er, () -> !outcomes.containsKey(id) &&
+                !prepared.containsKey(id) && !hasConflict(appt));
+        if (!awaitReadable()) {
+            LG.warning("Could not catch up after preparing " + id);
+            return false;
+        }
+        return prepared.containsKey(id);
+    }
+
+    /**
+     * decideLocal: log the outcome of a cross-shard appointment, unless one
+     * has been logged already
+     * @param appt
+     * @param commit
+     * @return the outcome logged first, null if none could be logged
+     */
+    public Boolean decideLocal(Appointment appt, boolean commit) {
+        String id = appt.getId();
+        commitToLog(EventRecord.decide(appt, commit, nodeId),
+                () -> !outcomes.containsKey(id));
+        if (!awaitReadable()) {
+            LG.warning("Could not catch up after deciding " + id);
+        }
+        return outcomes.get(id);
+    }
+
+    /**
+     * getOutcome: outcome logged for a cross-shard appointment
+     * @param id
+     * @return null if none has been applied yet
+     */
+    public Boolean getOutcome(String id) {
+        return outcomes.get(id);
+    }
+
+    /**
+     * getPrepared: cross-shard prepares applied here without an outcome
+     * @return
+     */
+    public List<EventRecord> getPrepared() {
+        return new ArrayList<>(prepared.values());
+    }
+
+    public boolean isSpeculative() {
+        return overlay != null;
     }
 
     public boolean deleteAppointment(String id) {
-        lock.lock();
-        if (!apptIdMap.containsKey(id)) {
-            lock.unlock();
+        if (soloLog != null && soloLog.getAppointment(id) != null) {
+            if (!soloLog.getAppointment(id).getParticipantsId()
+                    .contains(nodeId)) {
+                /* Solo appointments are only deleted by their owner */
+                return false;
+            }
+            soloLog.deleteAppointment(id);
+            return true;
+        }
+        Appointment deleteAppt = getSnapshot().getAppointment(id);
+        if (!deleteLocal(id)) {
+            return false;
+        }
+        if (shardCoordinator != null) {
+            shardCoordinator.releaseRemote(deleteAppt);
+        }
+        return true;
+    }
+
+    /**
+     * deleteLocal: delete appointment id from the calendar of this Paxos
+     * group only
+     * @param id
+     * @return false if the appointment does not exist
+     */
+    public boolean deleteLocal(String id) {
+        Appointment deleteAppt = getSnapshot().getAppointment(id);
+        if (deleteAppt == null) {
             return false;
         }
-        Appointment deleteAppt = apptIdMap.get(id);
-        boolean removeEventResult = false;
+        EventRecord newEvent = new EventRecord(EventOperation.DELETE, 0,
+                nodeId, deleteAppt);
+        if (generalized != null && generalized.tryFastCommit(newEvent)) {
+            WireStats.recordCommit();
+            return true;
+        }
+        return commitToLog(newEvent,
+                () -> getSnapshot().getApptIdMap().containsKey(id));
+    }
+
+    /**
+     * addMember: commit a configuration that adds nodeId as a learner. The
+     * new node promotes itself to voter once it has caught up with the log.
+     * @param id
+     * @param addr
+     * @return error message, or null if the change has been committed
+     */
+    public String addMember(int id, NodeAddress addr) {
+        ClusterConfig base = Membership.latest();
+        if (base.addressOf(id) != null || Constants.isReplica(id)) {
+            return "Node " + id + " is already a member";
+        }
+        return commitConfig(base, base.withLearner(id, addr));
+    }
+
+    /**
+     * removeMember: commit a configuration without nodeId
+     * @param id
+     * @return error message, or null if the change has been committed
+     */
+    public String removeMember(int id) {
+        ClusterConfig base = Membership.latest();
+        if (base.addressOf(id) == null) {
+            return "Node " + id + " is not a member";
+        }
+        if (base.isVoter(id) && base.getVoters().size() == 1) {
+            return "Cannot remove the last voter";
+        }
+        return commitConfig(base, base.without(id));
+    }
+
+    /**
+     * commitConfig: commit a one node change from base, the latest
+     * configuration, to config. It is given up once another change has been
+     * committed first.
+     * @param base
+     * @param config
+     * @return error message, or null if the change has been committed
+     */
+    private String commitConfig(ClusterConfig base, ClusterConfig config) {
+        String error = Membership.reconfigError();
+        if (error == null) {
+            error = config.quorumError();
+        }
+        if (error != null) {
+            return error;
+        }
+        boolean result = commitToLog(EventRecord.reconfigure(config, nodeId),
+                () -> Membership.latest() == base);
+        return result ? null : "Membership changed concurrently, try again";
+    }
+
+    /**
+     * startPromotion: once this learner has applied every event committed
+     * so far, commit its promotion to voter. Caller must hold lock.
+     */
+    private void startPromotion() {
+        if (promotion != null) {
+            return;
+        }
+        promotion = new Thread(() -> {
+            while (Membership.latest().isLearner(nodeId)) {
+                if (awaitReadable()) {
+                    ClusterConfig base = Membership.latest();
+                    if (base.isLearner(nodeId) &&
+                            commitConfig(base, base.promote(nodeId)) == null) {
+                        LG.info("Promoted to voter");
+                        return;
+                    }
+                }
+                try {
+                    Thread.sleep(Constants.SLEEP_LENGTH);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        promotion.setDaemon(true);
+        promotion.start();
+    }
+
+    /**
+     * commitToLog: run Paxos on the next free log slot until er is chosen,
+     * valid no longer holds or too few voters are alive for a quorum. With
+     * digest consensus the payload is published once and Paxos only agrees
+     * on its digest. Under slot ownership a retry stays in the slot claimed
+     * first until that slot is learned, since a revoker may have adopted er
+     * there; only a slot lost to a no-op is given up for a fresh one.
+     * @param er
+     * @param valid checked before every attempt
+     * @return true if er has been chosen
+     */
+    private boolean commitToLog(EventRecord er, BooleanSupplier valid) {
+        EventRecord value = payloadStore == null ? er :
+                payloadStore.publish(er);
+        boolean result = false;
+        lock.lock();
         int eventLogId = allEvents.size();
+        lock.unlock();
 
-        while (apptIdMap.containsKey(id) && removeEventResult == false) {
-            EventRecord newEvent = new EventRecord(EventOperation.DELETE, 0,
-                    nodeId, deleteAppt);
+        int ownSlot = Constants.NULL_ID;
+        while (valid.getAsBoolean() && result == false) {
+            lock.lock();
             int newEventLogId = allEvents.size();
-            if (newEventLogId == eventLogId) {
-                proposer.incrementPrepareId();
-            } else {
-                eventLogId = newEventLogId;
-                proposer.restart();
+            EventRecord chosen = ownSlot == Constants.NULL_ID ? null :
+                    chosenAt(ownSlot);
+            lock.unlock();
+            if (chosen != null && !chosen.isSameEvent(value)) {
+                LG.info("Own slot " + ownSlot + " lost, claiming another");
+                ownSlot = Constants.NULL_ID;
+            }
+            synchronized (proposer) {
+                if (slotOwnership != null && chosen != null &&
+                        ownSlot != Constants.NULL_ID) {
+                    newEventLogId = ownSlot;
+                    result = true;
+                } else if (slotOwnership != null &&
+                        ownSlot != Constants.NULL_ID) {
+                    /* Full Paxos keeps whatever a quorum accepted there */
+                    newEventLogId = ownSlot;
+                    proposer.nextBallot(accepter.getPromisedId(ownSlot));
+                    result = proposer.initEvent(ownSlot, value);
+                } else if (slotOwnership != null) {
+                    newEventLogId = slotOwnership.claimSlot(newEventLogId);
+                    ownSlot = newEventLogId;
+                    result = proposer.initOwnedEvent(newEventLogId, value);
+                } else {
+                    if (newEventLogId == eventLogId) {
+                        proposer.incrementPrepareId();
+                    } else {
+                        eventLogId = newEventLogId;
+                        proposer.restart();
+                    }
+                    result = proposer.initEvent(newEventLogId, value);
+                }
+            }
+            if (result) {
+                readLease.noteCommitted(newEventLogId);
+                WireStats.recordCommit();
             }
-            removeEventResult = proposer.initEvent(newEventLogId, newEvent);
         }
+        return result;
+    }
 
-        lock.unlock();
-        return removeEventResult;
+    /**
+     * chosenAt: the event learned for logId. Caller must hold lock.
+     * @param logId
+     * @return null if it has not been learned yet
+     */
+    private EventRecord chosenAt(int logId) {
+        if (logId < allEvents.size()) {
+            return allEvents.get(logId);
+        }
+        return pendingEvents.get(logId);
+    }
+
+    /**
+     * awaitReadable: block until the local calendar reflects every event
+     * committed before the call, so the next view is linearizable
+     * @return false if it could not be confirmed in time
+     */
+    public boolean awaitReadable() {
+        return readLease.awaitReadable();
+    }
+
+    /**
+     * waitForApplied: wait until every log line up to logId has been applied
+     * to the calendar, asking the gap repairer for the missing ones. A hole
+     * nobody can fill for READ_RECOVERY_TIMEOUT was accepted but never
+     * learned, so the slot is recovered by running Paxos on it.
+     * @param logId
+     * @return false if the log lines were not learned within WAIT_TIMEOUT
+     */
+    public boolean waitForApplied(int logId) {
+        long deadline = System.currentTimeMillis() +
+                Constants.WAIT_TIMEOUT * 1000L;
+        int firstHole = Constants.NULL_ID;
+        long holeSince = 0;
+        while (snapshot.get().getAppliedLogId() < logId) {
+            lock.lock();
+            int missing = allEvents.size();
+            for (int i = missing; i <= logId; ++i) {
+                if (!pendingEvents.containsKey(i)) {
+                    repairer.reportHole(i);
+                }
+            }
+            lock.unlock();
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                return false;
+            }
+            if (missing != firstHole) {
+                firstHole = missing;
+                holeSince = now;
+            } else if (!isReplica() &&
+                    now - holeSince >= Constants.READ_RECOVERY_TIMEOUT) {
+                recoverSlot(firstHole);
+                holeSince = System.currentTimeMillis();
+            }
+            try {
+                Thread.sleep(Constants.READ_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * recoverSlot: run Paxos on logId, so that a value a quorum may have
+     * accepted there is chosen again and announced, or a no-op if none was.
+     * Shares the proposer with commitToLog, so the node never runs two
+     * rounds with the same ballot.
+     * @param logId
+     */
+    private void recoverSlot(int logId) {
+        LG.info("Recovering unlearned log id " + logId);
+        synchronized (proposer) {
+            proposer.nextBallot(accepter.getPromisedId(logId));
+            proposer.initEvent(logId, EventRecord.noop(nodeId));
+        }
     }
 
     public void displayCalendarAllBySlot() {
         for (int nodeId = 0; nodeId < Constants.NODE_COUNT; ++nodeId) {
-            displayCalendarBySlot(nodeId);
+            /* Other Paxos groups order the calendars of their participants */
+            if (shardCoordinator == null || shardCoordinator.owns(nodeId)) {
+                displayCalendarBySlot(nodeId);
+            }
         }
     }
 
@@ -226,10 +883,11 @@ public class PaxosNode {
             System.out.printf("%10s ", Integer.toString(i));
         }
         System.out.println();
+        CalendarSnapshot view = snapshot.get();
         for (int i = 0; i < Constants.TOTAL_DAY; ++i) {
             System.out.printf("%8d ", i);
             for (int j = 0; j < Constants.SLOT_PER_DAY; ++j) {
-                System.out.printf("%10s ", globalTimetable[nodeId][i][j]);
+                System.out.printf("%10s ", view.getSlot(nodeId, i, j));
             }
             System.out.println();
         }
@@ -238,20 +896,24 @@ public class PaxosNode {
 
     public void displayCalendarAllByAppt() {
         for (int nodeId = 0; nodeId < Constants.NODE_COUNT; ++nodeId) {
-            displayCalendarByAppt(nodeId);
+            /* Other Paxos groups order the calendars of their participants */
+            if (shardCoordinator == null || shardCoordinator.owns(nodeId)) {
+                displayCalendarByAppt(nodeId);
+            }
         }
     }
 
     public void displayCalendarByAppt(int nodeId) {
         System.out.println("PaxosNode: " + nodeId);
+        CalendarSnapshot view = snapshot.get();
         for (int day = 0; day < Constants.TOTAL_DAY; ++day) {
             System.out.println("------- " + Constants.DAYS_OF_WEEK.get(day) + " ------");
             String prevApptId = "";
             for (int slot = 0; slot < Constants.SLOT_PER_DAY; ++slot) {
-                String apptId = globalTimetable[nodeId][day][slot];
+                String apptId = view.getSlot(nodeId, day, slot);
                 if (apptId != null && !apptId.equals(prevApptId)) {
                     prevApptId = apptId;
-                    Appointment appt = apptIdMap.get(apptId);
+                    Appointment appt = view.getAppointment(apptId);
                     System.out.println("Appointment Name: " + appt.getName());
                     System.out.println("Appointment ID: " + apptId);
                     System.out.println("Start time: " + appt.getStartTime());
@@ -263,26 +925,77 @@ public class PaxosNode {
                     System.out.print("\n");
                 }
             }
+            if (overlay != null) {
+                displayPending(view, nodeId, day);
+            }
+            if (soloLog != null) {
+                displaySolo(nodeId, day);
+            }
         }
         System.out.println();
     }
 
     /**
-     * updateMissingEvents: send LEARNER_REQUEST messages to other nodes to
-     * request event/log lines beyond current existing lines in allEvents.
+     * displayPending: the speculative appointments of nodeId on day that
+     * have not been applied yet
+     */
+    private void displayPending(CalendarSnapshot view, int nodeId, int day) {
+        for (Appointment appt: overlay.getPending(nodeId, day)) {
+            if (view.getAppointment(appt.getId()) != null) {
+                continue;
+            }
+            System.out.println("Appointment Name: " + appt.getName() +
+                    " (pending)");
+            System.out.println("Appointment ID: " + appt.getId());
+            System.out.println("Start time: " + appt.getStartTime());
+            System.out.println("End time: " + appt.getEndTime());
+            System.out.print("Participants: ");
+            for (Integer p: appt.getParticipantsId()) {
+                System.out.print(p + "  ");
+            }
+            System.out.print("\n");
+        }
+    }
+
+    /**
+     * displaySolo: the solo appointments of nodeId on day
+     */
+    private void displaySolo(int nodeId, int day) {
+        for (Appointment appt: soloLog.getAppointments()) {
+            if (appt.getDay() != day ||
+                    !appt.getParticipantsId().contains(nodeId)) {
+                continue;
+            }
+            System.out.println("Appointment Name: " + appt.getName());
+            System.out.println("Appointment ID: " + appt.getId());
+            System.out.println("Start time: " + appt.getStartTime());
+            System.out.println("End time: " + appt.getEndTime());
+            System.out.println("Participants: " + nodeId + "  ");
+        }
+    }
+
+    /**
+     * updateMissingEvents: send LEARNER_REQUEST range messages to other nodes
+     * to request event/log lines beyond current existing lines in allEvents.
      * If replies are received from other nodes, the message will be handled by
      * learner from ListenChannel thread and received log line will be added in
      * allEvents. The process will continue until no new log line is received.
+     * The calling thread catches up all the given namespaces at once, each
+     * round requests the next batch of every one still receiving log lines.
+     * @param nodes
      */
-    public void updateMissingEvents() {
-        lock.lock();
-        int allEventsSize = allEvents.size();
-        lock.unlock();
-        int newLogId = allEventsSize;
+    public static void updateMissingEvents(Collection<PaxosNode> nodes) {
+        Map<PaxosNode, Integer> sizes = new LinkedHashMap<>();
+        for (PaxosNode node: nodes) {
+            sizes.put(node, node.getAllEventsSize());
+        }
         System.out.println("Get missing events, please wait...");
-        while (true) {
-            for (int i = 0; i < Constants.MISSING_EVENT_BATCH_SIZE; ++i) {
-                PaxosMessage requestMsg = generateLearnerRequest(newLogId + i);
+        while (!sizes.isEmpty()) {
+            for (Map.Entry<PaxosNode, Integer> pair: sizes.entrySet()) {
+                int newLogId = pair.getValue();
+                PaxosMessage requestMsg = pair.getKey().generateLearnerRequest(
+                        newLogId,
+                        newLogId + Constants.MISSING_EVENT_BATCH_SIZE - 1);
                 try {
                     requestMsg.sendToAll();
                 } catch (Exception e) {
@@ -294,20 +1007,32 @@ public class PaxosNode {
             } catch (Exception e) {
                 System.err.println("updateMissingEvents sleep failed " + e);
             }
-            lock.lock();
-            int updatedAllEventsSize = allEvents.size();
-            lock.unlock();
-            if (updatedAllEventsSize == allEventsSize) {
-                break;
+            Iterator<Map.Entry<PaxosNode, Integer>> it =
+                    sizes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PaxosNode, Integer> pair = it.next();
+                int updatedAllEventsSize = pair.getKey().getAllEventsSize();
+                if (updatedAllEventsSize == pair.getValue()) {
+                    it.remove();
+                } else {
+                    pair.setValue(updatedAllEventsSize);
+                }
             }
-            allEventsSize = updatedAllEventsSize;
         }
         System.out.println("All events are update to date");
     }
 
+    private int getAllEventsSize() {
+        lock.lock();
+        try {
+            return allEvents.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void requestMissingEventsId(int log_id) {
-        PaxosMessage requestMsg = generateLearnerRequest(log_id);
-        requestMsg.sendToAll();
+        repairer.reportHole(log_id);
     }
 
     /**** Helper functions ****/
@@ -320,12 +1045,17 @@ public class PaxosNode {
      */
     private String generateNewApptId() {
         String id = String.format("n%03da%04d", nodeId, localApptId);
+        if (shardCoordinator != null) {
+            /* Ids must be unique across the Paxos groups */
+            id = "s" + shardCoordinator.getShardId() + id;
+        }
         ++localApptId;
         return id;
     }
 
     /**
      * hasConflict: Check if given appt conflicts with existing appointments
+     * in the latest calendar snapshot
      * @param appt
      * @return
      */
@@ -334,64 +1064,217 @@ public class PaxosNode {
         int start = appt.getStartTime();
         int end = appt.getEndTime();
         ArrayList<Integer> participants = appt.getParticipantsId();
-        lock.lock();
+        CalendarSnapshot view = snapshot.get();
         for (Integer p: participants) {
             for (int i = start; i <= end; ++i) {
-                if (globalTimetable[p][day][i] != null) {
-                    lock.unlock();
+                if (view.getSlot(p, day, i) != null) {
                     return true;
                 }
             }
         }
-        lock.unlock();
-        return false;
+        if (soloLog != null) {
+            for (Appointment solo: soloLog.getAppointments()) {
+                if (solo.overlaps(appt)) {
+                    return true;
+                }
+            }
+        }
+        return isLocked(appt);
     }
 
     /**
-     * insertAppointment: Add given appt to apptIdMap and globalTimetable
-     * @param appt
+     * cancelConflictingSolo: a solo appointment booked here concurrently
+     * with a conflicting Paxos appointment loses; as its owner, this node
+     * deletes it through the Wuu-Bernstein log. Caller must hold lock.
+     * @param ers events just applied from the Paxos log
      */
-    private void insertAppointment(Appointment appt) {
-//        System.out.println("Inserting appt");
-        String apptId = appt.getId();
-        int day = appt.getDay();
-        int start = appt.getStartTime();
-        int end = appt.getEndTime();
-        ArrayList<Integer> participants = appt.getParticipantsId();
-        apptIdMap.put(apptId, appt);
-        for (Integer p: participants) {
-            for (int i = start; i <= end; ++i) {
-                globalTimetable[p][day][i] = apptId;
+    private void cancelConflictingSolo(List<EventRecord> ers) {
+        for (EventRecord er: ers) {
+            if (er.getOperation() != EventOperation.ADD ||
+                    !er.getAppointment().getParticipantsId().contains(nodeId)) {
+                continue;
+            }
+            for (Appointment solo: soloLog.getAppointments()) {
+                if (solo.getParticipantsId().contains(nodeId) &&
+                        solo.overlaps(er.getAppointment())) {
+                    System.out.println("Appointment \"" + solo.getName() +
+                            "\" cancelled, it conflicts with \"" +
+                            er.getAppointment().getName() + "\"");
+                    soloLog.deleteAppointment(solo.getId());
+                }
             }
         }
     }
 
     /**
-     * removeAppointment: remove given appt from apptIdMap and globalTimetable
-     * @param appt
+     * replayCalendar: rebuild apptIdMap and globalTimetable from allEvents,
+     * interleaving the fast-path commits at the log position they were
+     * applied at
+     * @param fastCommits in apply order
+     */
+    private void replayCalendar(List<GeneralizedCommit.FastCommit> fastCommits) {
+        int from = 0;
+        for (GeneralizedCommit.FastCommit fc: fastCommits) {
+            int upTo = Math.min(fc.getAfterLogId() + 1, allEvents.size());
+            if (upTo > from) {
+                applyLogged(allEvents.subList(from, upTo), new ArrayList<>());
+                from = upTo;
+            }
+            List<EventRecord> ers = new ArrayList<>();
+            ers.add(fc.getER());
+            applyLogged(ers, new ArrayList<>());
+        }
+        applyLogged(allEvents.subList(from, allEvents.size()),
+                new ArrayList<>());
+    }
+
+    /**
+     * applyLogged: apply log events to apptIdMap and globalTimetable. A
+     * cross-shard PREPARE only locks its slots, and is dropped if they are
+     * taken at that point of the log. The first outcome logged for it turns
+     * it into a regular appointment or releases the slots, later ones are
+     * ignored. Under slot ownership conflicts are settled in log order here,
+     * see admitInLogOrder. Caller must hold lock.
+     * @param ers events in log order
+     * @param applied receives the calendar events that have been applied
+     * @return ids of the participants whose timetable has been touched
      */
-    private void removeAppointment(Appointment appt) {
-        String apptId = appt.getId();
+    private Set<Integer> applyLogged(List<EventRecord> ers,
+                                     List<EventRecord> applied) {
+        Set<Integer> touched = new HashSet<>();
+        List<EventRecord> batch = new ArrayList<>();
+        Map<Integer, String> batchCells = new HashMap<>();
+        for (EventRecord er: ers) {
+            switch (er.getOperation()) {
+                case PREPARE: {
+                    /* Its conflicts depend on everything before it */
+                    touched.addAll(APPLY_ENGINE.apply(batch, globalTimetable,
+                            apptIdMap));
+                    applied.addAll(batch);
+                    batch.clear();
+                    batchCells.clear();
+                    String id = er.getAppointment().getId();
+                    if (!outcomes.containsKey(id) &&
+                            !prepared.containsKey(id) &&
+                            !isTaken(er.getAppointment())) {
+                        prepared.put(id, er);
+                    }
+                    break;
+                }
+                case COMMIT_PREPARED:
+                case ABORT_PREPARED: {
+                    String id = er.getAppointment().getId();
+                    if (outcomes.containsKey(id)) {
+                        break;
+                    }
+                    boolean commit =
+                            er.getOperation() == EventOperation.COMMIT_PREPARED;
+                    outcomes.put(id, commit);
+                    EventRecord locked = prepared.remove(id);
+                    if (commit && locked != null) {
+                        batch.add(new EventRecord(EventOperation.ADD, 0,
+                                locked.getERNodeId(), locked.getAppointment()));
+                    }
+                    break;
+                }
+                default:
+                    if (slotOwnership == null ||
+                            admitInLogOrder(er, batchCells)) {
+                        batch.add(er);
+                    }
+                    break;
+            }
+        }
+        touched.addAll(APPLY_ENGINE.apply(batch, globalTimetable, apptIdMap));
+        applied.addAll(batch);
+        return touched;
+    }
+
+    /**
+     * admitInLogOrder: slot owners check an ADD only against their own
+     * calendar, so concurrent conflicting ADDs can both be chosen in
+     * different owners' slots. The log order settles it the same way on
+     * every node: an ADD whose slots are taken at its log position is
+     * skipped, and so is a DELETE of an appointment that is not shown there.
+     * Caller must hold lock.
+     * @param er
+     * @param batchCells timetable cells written by the batch that has not
+     * been applied yet, updated for er if it is admitted
+     * @return false if er must be skipped
+     */
+    private boolean admitInLogOrder(EventRecord er,
+                                    Map<Integer, String> batchCells) {
+        Appointment appt = er.getAppointment();
+        String value;
+        switch (er.getOperation()) {
+            case ADD:
+                value = appt.getId();
+                break;
+            case DELETE:
+                value = null;
+                break;
+            default:
+                return true;
+        }
         int day = appt.getDay();
-        int start = appt.getStartTime();
-        int end = appt.getEndTime();
-        ArrayList<Integer> participants = appt.getParticipantsId();
-        lock.lock();
-        for (Integer p: participants) {
-            for (int i = start; i <= end; ++i) {
-                globalTimetable[p][day][i] = null;
+        for (Integer p: appt.getParticipantsId()) {
+            for (int i = appt.getStartTime(); i <= appt.getEndTime(); ++i) {
+                int key = (p * Constants.TOTAL_DAY + day) *
+                        Constants.SLOT_PER_DAY + i;
+                String current = batchCells.containsKey(key) ?
+                        batchCells.get(key) : globalTimetable[p][day][i];
+                boolean ok = value == null ? appt.getId().equals(current) :
+                        current == null;
+                if (!ok) {
+                    LG.info("Skipping " + er.getOperation() + " of " +
+                            appt.getId() + ", it conflicts in log order");
+                    return false;
+                }
             }
         }
-        apptIdMap.remove(apptId);
-        lock.unlock();
+        if (value != null && isLocked(appt)) {
+            LG.info("Skipping ADD of " + appt.getId() + ", its slots are " +
+                    "locked");
+            return false;
+        }
+        for (Integer p: appt.getParticipantsId()) {
+            for (int i = appt.getStartTime(); i <= appt.getEndTime(); ++i) {
+                batchCells.put((p * Constants.TOTAL_DAY + day) *
+                        Constants.SLOT_PER_DAY + i, value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * isTaken: whether a slot of appt is booked in the live timetable or
+     * locked by a prepare. Caller must hold lock.
+     */
+    private boolean isTaken(Appointment appt) {
+        for (Integer p: appt.getParticipantsId()) {
+            for (int i = appt.getStartTime(); i <= appt.getEndTime(); ++i) {
+                if (globalTimetable[p][appt.getDay()][i] != null) {
+                    return true;
+                }
+            }
+        }
+        return isLocked(appt);
+    }
+
+    private boolean isLocked(Appointment appt) {
+        for (EventRecord locked: prepared.values()) {
+            if (locked.getAppointment().overlaps(appt)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * deserializeEvents: initialize the object variable allEvents
      */
     private void deserializeEvents() throws Exception {
-        String filename = String.format(nodeId + "_" +
-                Constants.EVENTRECORD_FILENAME);
+        String filename = storageName(Constants.EVENTRECORD_FILENAME);
         File fd = new File(filename);
         if (fd.exists()) {
             FileInputStream fileIn = null;
@@ -422,8 +1305,7 @@ public class PaxosNode {
         globalTimetable = new String[3][Constants.TOTAL_DAY][Constants.SLOT_PER_DAY];
         apptIdMap = new HashMap<>();
 
-        String filename = String.format(nodeId + "_" +
-                Constants.CALENDAR_FILENAME);
+        String filename = storageName(Constants.CALENDAR_FILENAME);
         File fd = new File(filename);
         if (fd.exists()) {
             FileInputStream fileIn = null;
@@ -463,8 +1345,7 @@ public class PaxosNode {
      * @throws Exception
      */
     private void serializeEvents() throws Exception {
-        String filename = String.format(nodeId + "_" +
-                Constants.EVENTRECORD_FILENAME);
+        String filename = storageName(Constants.EVENTRECORD_FILENAME);
         File fd = new File(filename);
         FileOutputStream fileOut = new FileOutputStream(fd);
         ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
@@ -476,8 +1357,7 @@ public class PaxosNode {
      * @throws Exception
      */
     private void serializeCalendar() throws Exception {
-        String filename = String.format(nodeId + "_" +
-                Constants.CALENDAR_FILENAME);
+        String filename = storageName(Constants.CALENDAR_FILENAME);
         File fd = new File(filename);
         FileOutputStream fileOut = new FileOutputStream(fd);
         ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
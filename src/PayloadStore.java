@@ -0,0 +1,347 @@
+/**
+ * PayloadStore class: separates payload dissemination from ordering.
+ * Paxos agrees only on a digest-only EventRecord. The full record travels
+ * once to each voter, in place of its digest in the PROPOSE, and once in a
+ * PAYLOAD message to the nodes that get no PROPOSE. Learners
+ * resolve the digest against this store and fetch a missing payload from
+ * the peers on demand before the log line is applied; a payload nobody
+ * holds any more is replaced by the full record from a peer's log.
+ * Payloads not applied yet are kept on disk, so a node can still serve the
+ * ones it voted for after a restart. Every node reports the log id up to
+ * which it has applied them, and a payload is dropped once a quorum of
+ * voters has applied its log line.
+ */
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class PayloadStore extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            PayloadStore.class.getName());
+
+    private PaxosNode node;
+    private int nodeId;
+    private String namespace;
+    /* Guarded by payloads */
+    private final Map<String, EventRecord> payloads;
+    /* Digest -> log id of the payloads a log line is waiting for */
+    private final Map<String, Integer> missing;
+    /* Log id -> digest of the held payloads whose log line is applied */
+    private final TreeMap<Integer, String> applied;
+    /* Node id -> highest log id it has applied with a payload */
+    private final Map<Integer, Integer> appliedBy;
+    private final LinkedBlockingQueue<String> toRequest;
+    private int reportedUpTo;
+    private long reportedAt;
+
+    /* Constructor */
+    public PayloadStore(PaxosNode node_obj) {
+        node = node_obj;
+        nodeId = node_obj.getNodeId();
+        namespace = node_obj.getNamespace();
+        payloads = new HashMap<>();
+        missing = new HashMap<>();
+        applied = new TreeMap<>();
+        appliedBy = new HashMap<>();
+        toRequest = new LinkedBlockingQueue<>();
+        reportedUpTo = -1;
+        reportedAt = 0;
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * publish: store er under its digest, send it to the nodes that do not
+     * vote, the voters get it with the PROPOSE, and return the digest-only
+     * record to run consensus on
+     * @param er
+     * @return
+     */
+    public EventRecord publish(EventRecord er) {
+        String digest = digestOf(er);
+        er.setDigest(digest);
+        store(er);
+        PaxosMessage payloadMsg = new PaxosMessage(PaxosMessageType.PAYLOAD,
+                -1, -1, -1, nodeId, er);
+        payloadMsg.setNamespace(namespace);
+        ClusterConfig latest = Membership.latest();
+        for (Map.Entry<Integer, NodeAddress> pair:
+                Membership.members().entrySet()) {
+            if (pair.getKey() != nodeId && !latest.isVoter(pair.getKey()) &&
+                    !Constants.isWitness(pair.getKey())) {
+                payloadMsg.sendToAddr(pair.getValue().getIp(),
+                        pair.getValue().getPort());
+            }
+        }
+        return EventRecord.digestOnly(er, nodeId);
+    }
+
+    /**
+     * resolve: the full record for a digest-only one. A missing payload is
+     * requested from the peers.
+     * @param er
+     * @param logId log line er has been chosen for
+     * @return er itself if it is not digest-only, null if the payload has not
+     * arrived yet
+     */
+    public EventRecord resolve(EventRecord er, int logId) {
+        if (!er.isDigestOnly()) {
+            return er;
+        }
+        synchronized (payloads) {
+            EventRecord full = payloads.get(er.getDigest());
+            if (full == null &&
+                    missing.putIfAbsent(er.getDigest(), logId) == null) {
+                toRequest.offer(er.getDigest());
+            }
+            return full;
+        }
+    }
+
+    /**
+     * lookup: the stored payload of a digest
+     * @param digest
+     * @return null if it is not held here
+     */
+    public EventRecord lookup(String digest) {
+        synchronized (payloads) {
+            return payloads.get(digest);
+        }
+    }
+
+    /**
+     * store: keep a payload, on disk too, and apply the log lines that were
+     * waiting for it
+     * @param er full record with its digest set
+     */
+    public void store(EventRecord er) {
+        boolean wasMissing;
+        synchronized (payloads) {
+            if (payloads.containsKey(er.getDigest())) {
+                return;
+            }
+            payloads.put(er.getDigest(), er);
+            wasMissing = missing.remove(er.getDigest()) != null;
+            save();
+        }
+        if (wasMissing) {
+            node.onPayloadArrived();
+        }
+    }
+
+    /**
+     * onApplied: the log line logId, resolved to er, has been applied here
+     * @param er
+     * @param logId
+     */
+    public void onApplied(EventRecord er, int logId) {
+        synchronized (payloads) {
+            missing.remove(er.getDigest());
+            if (payloads.containsKey(er.getDigest())) {
+                applied.put(logId, er.getDigest());
+            }
+            appliedBy.merge(nodeId, logId, Math::max);
+        }
+    }
+
+    public void handlePayload(PaxosMessage msg) {
+        store(msg.getER());
+    }
+
+    public void handlePayloadRequest(PaxosMessage msg) {
+        EventRecord er = lookup(msg.getInstanceId());
+        if (er == null) {
+            return;
+        }
+        PaxosMessage payloadMsg = new PaxosMessage(PaxosMessageType.PAYLOAD,
+                -1, -1, -1, nodeId, er);
+        payloadMsg.setNamespace(namespace);
+        NodeAddress addr = Membership.addressOf(msg.getNodeId());
+        payloadMsg.sendToAddr(addr.getIp(), addr.getPort());
+    }
+
+    /**
+     * handlePayloadApplied: the sender has applied its log up to the log id
+     * of the message, drop the payloads a quorum of voters has applied
+     * @param msg
+     */
+    public void handlePayloadApplied(PaxosMessage msg) {
+        synchronized (payloads) {
+            appliedBy.merge(msg.getNodeId(), msg.getLogId(), Math::max);
+            prune();
+        }
+    }
+
+    /**
+     * load: restore the payloads stored by save
+     */
+    public void load() {
+        File fd = new File(node.storageName(Constants.PAYLOAD_FILENAME));
+        if (!fd.exists()) {
+            return;
+        }
+        try (ObjectInputStream objIn = new ObjectInputStream(
+                new FileInputStream(fd))) {
+            HashMap<String, EventRecord> stored = new HashMap<>();
+            int count = objIn.readInt();
+            for (int i = 0; i < count; ++i) {
+                EventRecord er = (EventRecord) objIn.readObject();
+                stored.put(er.getDigest(), er);
+            }
+            synchronized (payloads) {
+                payloads.putAll(stored);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            LG.severe("Cannot load payloads from " + fd + " " + e);
+        }
+    }
+
+    /**
+     * run: request missing payloads, re-requesting the ones still missing
+     * every REPAIR_MAX_BACKOFF along with their log lines, and report how
+     * far this node has applied at most that often
+     */
+    public void run() {
+        while (true) {
+            List<String> digests = new ArrayList<>();
+            try {
+                String digest = toRequest.poll(Constants.REPAIR_MAX_BACKOFF,
+                        TimeUnit.MILLISECONDS);
+                if (digest != null) {
+                    digests.add(digest);
+                    toRequest.drainTo(digests);
+                } else {
+                    List<Integer> logIds = new ArrayList<>();
+                    synchronized (payloads) {
+                        digests.addAll(missing.keySet());
+                        logIds.addAll(missing.values());
+                    }
+                    /* The peers may have dropped it, their logs hold it */
+                    for (int logId: logIds) {
+                        node.repairLogId(logId);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LG.warning("PayloadStore interrupted, exit");
+                return;
+            }
+            for (String digest: digests) {
+                LG.info("Requesting payload " + digest);
+                PaxosMessage requestMsg = new PaxosMessage(
+                        PaxosMessageType.PAYLOAD_REQUEST, -1, -1, -1, nodeId,
+                        null);
+                requestMsg.setNamespace(namespace);
+                requestMsg.setInstance(digest, null);
+                requestMsg.sendToAll();
+            }
+            reportApplied();
+        }
+    }
+
+    /** Helper functions **/
+
+    private void reportApplied() {
+        int upTo;
+        synchronized (payloads) {
+            upTo = appliedBy.getOrDefault(nodeId, -1);
+            prune();
+        }
+        long now = System.currentTimeMillis();
+        /* Only the voters count towards the quorum that drops a payload */
+        if (!Membership.latest().isVoter(nodeId) || upTo <= reportedUpTo ||
+                now - reportedAt < Constants.REPAIR_MAX_BACKOFF) {
+            return;
+        }
+        reportedUpTo = upTo;
+        reportedAt = now;
+        PaxosMessage appliedMsg = new PaxosMessage(
+                PaxosMessageType.PAYLOAD_APPLIED, -1, upTo, -1, nodeId, null);
+        appliedMsg.setNamespace(namespace);
+        for (Map.Entry<Integer, NodeAddress> pair:
+                Membership.members().entrySet()) {
+            if (pair.getKey() != nodeId &&
+                    !Constants.isWitness(pair.getKey())) {
+                appliedMsg.sendToAddr(pair.getValue().getIp(),
+                        pair.getValue().getPort());
+            }
+        }
+    }
+
+    /**
+     * prune: drop the payloads of the log lines applied by a quorum of
+     * voters. Caller must hold payloads.
+     */
+    private void prune() {
+        ClusterConfig latest = Membership.latest();
+        List<Integer> upTo = new ArrayList<>();
+        for (int voter: latest.getVoters().keySet()) {
+            upTo.add(appliedBy.getOrDefault(voter, -1));
+        }
+        upTo.sort(Collections.reverseOrder());
+        int quorum = latest.getPhase2Quorum();
+        if (quorum < 1 || quorum > upTo.size()) {
+            return;
+        }
+        SortedMap<Integer, String> done = applied.headMap(
+                upTo.get(quorum - 1), true);
+        for (String digest: done.values()) {
+            payloads.remove(digest);
+        }
+        done.clear();
+    }
+
+    /**
+     * save: store the payloads not applied yet, replacing the file only
+     * once the new content is on disk. Caller must hold payloads.
+     */
+    private void save() {
+        File fd = new File(node.storageName(Constants.PAYLOAD_FILENAME));
+        File tmp = new File(fd.getPath() + ".tmp");
+        Set<String> done = new HashSet<>(applied.values());
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            ObjectOutputStream objOut = new ObjectOutputStream(out);
+            objOut.writeInt(payloads.size() - done.size());
+            for (Map.Entry<String, EventRecord> pair: payloads.entrySet()) {
+                if (!done.contains(pair.getKey())) {
+                    objOut.writeObject(pair.getValue());
+                }
+            }
+            objOut.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            LG.severe("Cannot store payloads to " + tmp + " " + e);
+            return;
+        }
+        if (!tmp.renameTo(fd)) {
+            LG.severe("Cannot replace " + fd);
+        }
+    }
+
+    /**
+     * digestOf: first 16 bytes of the SHA-256 of the serialized record, in hex
+     * @param er
+     * @return
+     */
+    private static String digestOf(EventRecord er) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+            objOut.writeObject(er);
+            objOut.close();
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+                    bytes.toByteArray());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; ++i) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot digest event record " + e);
+        }
+    }
+}
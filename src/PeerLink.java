@@ -0,0 +1,236 @@
+/**
+ * PeerLink class: the connection this process keeps open to the listen port
+ * of one peer, shared by all the calendar namespaces it hosts. Messages are
+ * queued, and one sender thread per peer writes whatever has piled up as a
+ * single batch frame, so the messages of every namespace bound for that
+ * peer share one socket and one write. A frame is the message count
+ * followed by each serialized message prefixed with its length. Peers never
+ * write back, so a read that returns means the peer closed the connection,
+ * which is then dropped and reopened by the next send. A peer that cannot
+ * be reached is not retried before PEER_RECONNECT_INTERVAL has passed,
+ * sends to it fail meanwhile.
+ */
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+public class PeerLink extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            PeerLink.class.getName());
+
+    /* "ip:port" -> link of this process to that listen port */
+    private static final Map<String, PeerLink> LINKS =
+            new ConcurrentHashMap<>();
+
+    private final String ip;
+    private final int port;
+    private final LinkedBlockingQueue<byte[]> outbox;
+    /* Guarded by this */
+    private Socket socket;
+    private DataOutputStream out;
+    private long lastFailure;
+
+    /* Constructor */
+    private PeerLink(String peer_ip, int peer_port) {
+        ip = peer_ip;
+        port = peer_port;
+        outbox = new LinkedBlockingQueue<>();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * to: the link of this process to the given listen port, started on
+     * first use
+     * @param ip
+     * @param port
+     * @return
+     */
+    public static PeerLink to(String ip, int port) {
+        return LINKS.computeIfAbsent(ip + ":" + port, key -> {
+            PeerLink link = new PeerLink(ip, port);
+            link.start();
+            return link;
+        });
+    }
+
+    /**
+     * send: queue a serialized message for the next batch
+     * @param message
+     * @return false if the peer cannot be reached
+     */
+    public boolean send(byte[] message) {
+        if (!connect()) {
+            return false;
+        }
+        outbox.offer(message);
+        return true;
+    }
+
+    /**
+     * run: write the queued messages in batches of up to PEER_BATCH_SIZE
+     */
+    public void run() {
+        List<byte[]> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(outbox.take());
+            } catch (InterruptedException e) {
+                LG.warning("PeerLink interrupted, exit");
+                return;
+            }
+            outbox.drainTo(batch, Constants.PEER_BATCH_SIZE - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * serve: accept links on server forever. Each link is read on its own
+     * thread, and the messages of all of them are handed to deliver one at
+     * a time on the calling thread, in the order each link sent them.
+     * @param server
+     * @param deliver
+     */
+    public static void serve(ServerSocket server,
+                             Consumer<PaxosMessage> deliver) {
+        LinkedBlockingQueue<PaxosMessage> inbox = new LinkedBlockingQueue<>();
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket client = server.accept();
+                    Thread reader = new Thread(() -> receive(client, inbox));
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    LG.warning("accept failed " + e);
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        while (true) {
+            try {
+                deliver.accept(inbox.take());
+            } catch (InterruptedException e) {
+                LG.warning("PeerLink server interrupted, exit");
+                return;
+            } catch (Exception e) {
+                LG.warning("handling message failed " + e);
+            }
+        }
+    }
+
+    /** Helper functions **/
+
+    private synchronized boolean connect() {
+        if (out != null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastFailure < Constants.PEER_RECONNECT_INTERVAL) {
+            return false;
+        }
+        try {
+            Socket opened = new Socket(ip, port);
+            opened.setTcpNoDelay(true);
+            socket = opened;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    opened.getOutputStream()));
+            Thread watcher = new Thread(() -> watch(opened));
+            watcher.setDaemon(true);
+            watcher.start();
+            return true;
+        } catch (IOException e) {
+            lastFailure = now;
+            LG.warning("Cannot connect to " + ip + ", port: " + port + " " +
+                    e);
+            return false;
+        }
+    }
+
+    private void write(List<byte[]> batch) {
+        DataOutputStream stream;
+        synchronized (this) {
+            stream = out;
+        }
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.writeInt(batch.size());
+            for (byte[] message: batch) {
+                stream.writeInt(message.length);
+                stream.write(message);
+            }
+            stream.flush();
+        } catch (IOException e) {
+            LG.warning("Sending to " + ip + ", port: " + port + " failed " +
+                    e);
+            disconnect(null);
+        }
+    }
+
+    /**
+     * watch: block until the peer closes opened, then drop it
+     */
+    private void watch(Socket opened) {
+        try {
+            opened.getInputStream().read();
+        } catch (IOException e) {
+            LG.fine("Link to " + ip + ", port: " + port + " broken " + e);
+        }
+        disconnect(opened);
+    }
+
+    /**
+     * disconnect: drop the current connection, or only closed if it is still
+     * the current one
+     */
+    private synchronized void disconnect(Socket closed) {
+        if (socket == null || (closed != null && closed != socket)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LG.warning("socket close failed. " + e);
+        }
+        socket = null;
+        out = null;
+    }
+
+    /**
+     * receive: read the batch frames of one link until it is closed
+     */
+    private static void receive(Socket client,
+                                LinkedBlockingQueue<PaxosMessage> inbox) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(client.getInputStream()))) {
+            while (true) {
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    byte[] message = new byte[in.readInt()];
+                    in.readFully(message);
+                    ObjectInputStream ois = new ObjectInputStream(
+                            new ByteArrayInputStream(message));
+                    inbox.offer((PaxosMessage) ois.readObject());
+                }
+            }
+        } catch (EOFException e) {
+            LG.info("Link from " + client.getRemoteSocketAddress() +
+                    " closed");
+        } catch (Exception e) {
+            LG.warning("receiving failed " + e);
+        }
+    }
+}
@@ -15,10 +15,13 @@ public class Proposer {
             Proposer.class.getName());
 
     private int nodeId;
+    private String namespace;
     private int logId;
     private int prepareId;
     private EventRecord targetVal;
     private boolean targetValAccepted;
+    /* Payloads sent in place of digest-only values, null without digests */
+    private PayloadStore payloadStore;
 
     private Lock valuesLock;
     private int maxPromisedId;
@@ -33,7 +36,13 @@ public class Proposer {
 
     /* Constructor */
     public Proposer(int node_id) {
+        this(node_id, Constants.DEFAULT_NAMESPACE);
+    }
+
+    /* Constructor for the proposer of the given calendar namespace */
+    public Proposer(int node_id, String namespace_id) {
         nodeId = node_id;
+        namespace = namespace_id;
         prepareId = node_id;
         maxPromisedId = -1;
         targetVal = null;
@@ -52,6 +61,15 @@ public class Proposer {
         LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
     }
 
+    /**
+     * setPayloadStore: attach the payloads of digest-only values to the
+     * proposals
+     * @param store
+     */
+    public void setPayloadStore(PayloadStore store) {
+        payloadStore = store;
+    }
+
     public void restart() {
         prepareId = nodeId;
         targetValAccepted = true;
@@ -85,6 +103,43 @@ public class Proposer {
 
         LG.info("Next step: propose");
 
+        if (!acceptPhase()) {
+            return false;
+        }
+
+        restart();
+        return targetValAccepted;
+    }
+
+    /**
+     * initOwnedEvent: commit er in a log slot owned by this node under
+     * rotating slot ownership. The owner is implicitly prepared with ballot
+     * nodeId, so the prepare phase is skipped.
+     * @param log_id
+     * @param er
+     * @return
+     */
+    public boolean initOwnedEvent(int log_id, EventRecord er) {
+        LG.info("initOwnedEvent " + log_id);
+        restart();
+        logId = log_id;
+        targetVal = er;
+
+        if (!acceptPhase()) {
+            restart();
+            return false;
+        }
+
+        restart();
+        return true;
+    }
+
+    /**
+     * acceptPhase: propose, wait for the majority accept and notify the
+     * learners of the chosen value
+     * @return false if no majority accepted in time
+     */
+    private boolean acceptPhase() {
         propose();
         acceptMajorityLock.lock();
         try {
@@ -102,17 +157,16 @@ public class Proposer {
         }
 
         PaxosMessage learnerNoticeMsg = new PaxosMessage(
-                PaxosMessageType.LEARNER_NOTICE, prepareId, log_id,
+                PaxosMessageType.LEARNER_NOTICE, prepareId, logId,
                 Constants.NULL_ID, nodeId, receivedVal == null ?
                 targetVal : receivedVal);
+        learnerNoticeMsg.setNamespace(namespace);
         try {
             learnerNoticeMsg.sendToAll();
         } catch (Exception e) {
             System.err.println("Send learner notice failed " + e);
         }
-
-        restart();
-        return targetValAccepted;
+        return true;
     }
 
     /**
@@ -121,6 +175,7 @@ public class Proposer {
     private void prepare() {
         PaxosMessage msg = new PaxosMessage(PaxosMessageType.PREPARE, prepareId,
                 logId, -1, nodeId, null);
+        msg.setNamespace(namespace);
         try {
             msg.sendToAll();
         } catch (Exception e) {
@@ -138,9 +193,17 @@ public class Proposer {
         if (receivedVal != null) {
             targetValAccepted = false;
         }
+        EventRecord value = receivedVal == null ? targetVal : receivedVal;
+        if (payloadStore != null && value != null && value.isDigestOnly()) {
+            /* The acceptors store the payload, then accept its digest */
+            EventRecord full = payloadStore.lookup(value.getDigest());
+            if (full != null) {
+                value = full;
+            }
+        }
         PaxosMessage msg = new PaxosMessage(PaxosMessageType.PROPOSE, prepareId,
-                logId, -1, nodeId,
-                receivedVal == null ? targetVal : receivedVal);
+                logId, -1, nodeId, value);
+        msg.setNamespace(namespace);
         LG.info("Sending proposals");
         try {
             msg.sendToAll();
@@ -152,8 +215,9 @@ public class Proposer {
     public void handlePromise(PaxosMessage msg) {
         int prepare_id = msg.getPId();
 
-        /* If the promise message is not for the current prepareId, discard */
-        if (prepare_id != prepareId) {
+        /* Discard promises for another prepareId or from non-voters */
+        if (prepare_id != prepareId || msg.getLogId() != logId ||
+                !Membership.isVoter(logId, msg.getNodeId())) {
             return;
         }
 
@@ -168,7 +232,7 @@ public class Proposer {
         LG.info("promiseCount = " + promiseCount);
 
         promiseMajorityLock.lock();
-        if (promiseCount >= Constants.MAJORITY_COUNT) {
+        if (promiseCount >= Membership.forSlot(logId).getPhase1Quorum()) {
             LG.info("got the majority promise");
             promiseMajority.signal();
         } else {
@@ -181,21 +245,39 @@ public class Proposer {
     public void handleAccept(PaxosMessage msg) {
         int prepare_id = msg.getPId();
 
-        /* If the promise message is not for the current prepareId, discard */
-        if (prepare_id != prepareId) {
+        /* Discard accepts for another prepareId or from non-voters */
+        if (prepare_id != prepareId || msg.getLogId() != logId ||
+                !Membership.isVoter(logId, msg.getNodeId())) {
             return;
         }
 
         valuesLock.lock();
         ++acceptCount;
         acceptMajorityLock.lock();
-        if (acceptCount >= Constants.MAJORITY_COUNT) {
+        if (acceptCount >= Membership.forSlot(logId).getPhase2Quorum()) {
             acceptMajority.signal();
         }
         valuesLock.unlock();
         acceptMajorityLock.unlock();
     }
 
+    /**
+     * nextBallot: reset the round state for a new attempt, with a ballot of
+     * this node's partition above both its previous ballot and seen. A
+     * proposer that retries the same slot keeps climbing, so it eventually
+     * outbids any promise another proposer left behind.
+     * @param seen highest ballot known to be promised or accepted elsewhere
+     */
+    public void nextBallot(int seen) {
+        int floor = Math.max(seen, maxPromisedId);
+        int previous = prepareId;
+        restart();
+        prepareId = previous + Constants.PREPARE_ID_INCREMENT;
+        while (prepareId <= floor) {
+            prepareId += Constants.PREPARE_ID_INCREMENT;
+        }
+    }
+
     /** Helper functions **/
     public void incrementPrepareId() {
         prepareId += Constants.PREPARE_ID_INCREMENT;
@@ -0,0 +1,184 @@
+/**
+ * ReadLease class: makes local reads linearizable.
+ * The node configured as Constants.READ_LEASE_NODE_ID keeps a time-bounded
+ * lease granted by a majority of acceptors. While the lease is valid no other
+ * node can get a value accepted, so once the holder has applied everything
+ * the granting acceptors had accepted it serves reads locally.
+ * Every other node (or the holder without a valid lease) runs a read-index
+ * round instead: it asks a majority of acceptors for the highest log id they
+ * have accepted and waits until that prefix has been applied locally. A slot
+ * in that prefix may have been accepted without ever being chosen, when its
+ * proposer died between the phases. The reader then recovers it with a Paxos
+ * round of its own, which chooses the accepted value again or a no-op.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class ReadLease extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            ReadLease.class.getName());
+
+    private PaxosNode node;
+    private int nodeId;
+    private String namespace;
+
+    private final Lock roundLock;
+    private final Condition roundMajority;
+    private int roundId;
+    private int replyCount;
+    private int maxAcceptedLogId;
+
+    private volatile long leaseExpiry;
+    private volatile int leaseRequiredLogId;
+
+    /* Constructor */
+    public ReadLease(PaxosNode node_obj) {
+        node = node_obj;
+        nodeId = node_obj.getNodeId();
+        namespace = node_obj.getNamespace();
+        roundLock = new ReentrantLock();
+        roundMajority = roundLock.newCondition();
+        roundId = 0;
+        leaseExpiry = 0;
+        leaseRequiredLogId = Constants.NULL_ID;
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    public boolean isLeaseHolder() {
+        return nodeId == Constants.READ_LEASE_NODE_ID;
+    }
+
+    /**
+     * hasValidLease: true if this node holds an unexpired lease and has
+     * applied every log line the granting acceptors had accepted
+     * @return
+     */
+    public boolean hasValidLease() {
+        return isLeaseHolder() &&
+                System.currentTimeMillis() < leaseExpiry &&
+                node.getSnapshot().getAppliedLogId() >= leaseRequiredLogId;
+    }
+
+    /**
+     * run: lease holder renews its lease every half lease period
+     */
+    public void run() {
+        while (true) {
+            long requestTime = System.currentTimeMillis();
+            int requiredLogId = runRound(PaxosMessageType.LEASE_REQUEST);
+            if (requiredLogId != Integer.MIN_VALUE) {
+                leaseRequiredLogId = requiredLogId;
+                leaseExpiry = requestTime + Constants.LEASE_DURATION -
+                        Constants.LEASE_CLOCK_DRIFT;
+                node.waitForApplied(requiredLogId);
+            } else {
+                LG.info("Failed to renew read lease");
+            }
+            try {
+                Thread.sleep(Constants.LEASE_DURATION / 2);
+            } catch (InterruptedException e) {
+                LG.warning("ReadLease interrupted, exit");
+                return;
+            }
+        }
+    }
+
+    /**
+     * awaitReadable: block until a local read reflects every event committed
+     * before this call, using the lease if possible and a read-index round
+     * otherwise
+     * @return false if the read-index round timed out
+     */
+    public boolean awaitReadable() {
+        if (hasValidLease()) {
+            return true;
+        }
+        int readIndex = runRound(PaxosMessageType.READ_INDEX_REQUEST);
+        if (readIndex == Integer.MIN_VALUE) {
+            LG.info("Read index round failed to get majority replies");
+            return false;
+        }
+        return node.waitForApplied(readIndex);
+    }
+
+    /**
+     * noteCommitted: a value proposed by this node has been chosen for logId,
+     * local reads must wait until it has been applied
+     * @param logId
+     */
+    public void noteCommitted(int logId) {
+        leaseRequiredLogId = Math.max(leaseRequiredLogId, logId);
+    }
+
+    public void handleLeaseGrant(PaxosMessage msg) {
+        handleRoundReply(msg);
+    }
+
+    public void handleReadIndexReply(PaxosMessage msg) {
+        handleRoundReply(msg);
+    }
+
+    /** Helper functions **/
+
+    /**
+     * runRound: send the request of given type to all acceptors and wait for
+     * a majority of replies
+     * @param type LEASE_REQUEST or READ_INDEX_REQUEST
+     * @return the highest accepted log id among the replies, or
+     * Integer.MIN_VALUE if no majority replied in time
+     */
+    private synchronized int runRound(PaxosMessageType type) {
+        roundLock.lock();
+        int round = ++roundId;
+        replyCount = 0;
+        maxAcceptedLogId = Constants.NULL_ID;
+        roundLock.unlock();
+
+        PaxosMessage msg = new PaxosMessage(type, round, -1, -1, nodeId,
+                null);
+        msg.setNamespace(namespace);
+        try {
+            msg.sendToAll();
+        } catch (Exception e) {
+            LG.warning("Send " + type + " failed " + e);
+        }
+
+        roundLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            while (replyCount < Membership.latest().getPhase1Quorum()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return Integer.MIN_VALUE;
+                }
+                roundMajority.await(remaining, TimeUnit.MILLISECONDS);
+            }
+            return maxAcceptedLogId;
+        } catch (InterruptedException e) {
+            return Integer.MIN_VALUE;
+        } finally {
+            roundLock.unlock();
+        }
+    }
+
+    private void handleRoundReply(PaxosMessage msg) {
+        roundLock.lock();
+        if (msg.getPId() == roundId &&
+                Membership.latest().isVoter(msg.getNodeId())) {
+            ++replyCount;
+            maxAcceptedLogId = Math.max(maxAcceptedLogId,
+                    msg.getPromisedId());
+            if (replyCount >= Membership.latest().getPhase1Quorum()) {
+                roundMajority.signal();
+            }
+        }
+        roundLock.unlock();
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * ShardCoordinator class: atomic commit of appointments whose participants
+ * belong to several Paxos groups. The node that takes the add coordinates a
+ * two-phase commit in which every participant is a whole group: each
+ * involved group logs a PREPARE, which locks the slots without showing the
+ * appointment, and votes yes if it got the lock. The coordinator then logs
+ * the outcome in its own group, where the first outcome logged is final,
+ * and sends it to the other groups, which log it too. A group whose prepare
+ * stays without outcome for SHARD_IN_DOUBT_TIMEOUT asks the coordinator
+ * group, which presumes an abort if it has logged no outcome. Requests from
+ * other groups are run on this thread, off the listen thread that has to
+ * deliver the Paxos replies they wait for.
+ */
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class ShardCoordinator extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            ShardCoordinator.class.getName());
+
+    private PaxosNode node;
+    private int nodeId;
+    private String namespace;
+    private int shardId;
+    private final LinkedBlockingQueue<PaxosMessage> requests;
+
+    /* Appointment id -> shard -> 1 for yes, 0 for no */
+    private final Map<String, Map<Integer, Integer>> votes;
+    /* Appointment id -> when this node first saw its prepare without outcome */
+    private final Map<String, Long> inDoubtSince;
+    private final Lock voteLock;
+    private final Condition voteArrived;
+
+    /* Constructor */
+    public ShardCoordinator(PaxosNode node_obj, int shard_id) {
+        node = node_obj;
+        nodeId = node_obj.getNodeId();
+        namespace = node_obj.getNamespace();
+        shardId = shard_id;
+        requests = new LinkedBlockingQueue<>();
+        votes = new HashMap<>();
+        inDoubtSince = new HashMap<>();
+        voteLock = new ReentrantLock();
+        voteArrived = voteLock.newCondition();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    public int getShardId() {
+        return shardId;
+    }
+
+    public boolean owns(int participant) {
+        return Constants.shardOf(participant) == shardId;
+    }
+
+    /**
+     * isLocal: whether every participant of appt belongs to this group
+     * @param appt
+     * @return
+     */
+    public boolean isLocal(Appointment appt) {
+        return shardsOf(appt).equals(Collections.singleton(shardId));
+    }
+
+    /**
+     * commitCrossShard: commit the ADD event er in every group that owns one
+     * of its participants, or in none of them
+     * @param er
+     * @return true if every group has committed er
+     */
+    public boolean commitCrossShard(EventRecord er) {
+        Appointment appt = er.getAppointment();
+        String txnId = appt.getId();
+        Set<Integer> shards = shardsOf(appt);
+        voteLock.lock();
+        votes.put(txnId, new HashMap<>());
+        voteLock.unlock();
+
+        EventRecord prepare = EventRecord.prepare(appt, shardId, nodeId);
+        for (int shard: shards) {
+            if (shard != shardId) {
+                sendToShard(PaxosMessageType.SHARD_PREPARE, shard, prepare);
+            }
+        }
+        boolean localYes = !shards.contains(shardId) ||
+                node.prepareLocal(prepare);
+
+        Map<Integer, Integer> result;
+        voteLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(Constants.WAIT_TIMEOUT);
+            while (votes.get(txnId).size() < shards.size() -
+                    (shards.contains(shardId) ? 1 : 0)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                voteArrived.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            LG.warning("Interrupted while waiting for votes " + e);
+        } finally {
+            result = votes.remove(txnId);
+            voteLock.unlock();
+        }
+
+        boolean commit = localYes;
+        for (int shard: shards) {
+            if (shard != shardId && result.getOrDefault(shard, 0) != 1) {
+                commit = false;
+            }
+        }
+        /* Final once logged here, the groups that miss it ask for it */
+        Boolean outcome = node.decideLocal(appt, commit);
+        if (outcome == null) {
+            LG.warning("Could not log the outcome of cross-shard add " +
+                    txnId);
+            return false;
+        }
+        LG.info((outcome ? "Committing" : "Aborting") +
+                " cross-shard add " + txnId);
+        EventRecord decision = EventRecord.decide(appt, outcome, nodeId);
+        for (int shard: shards) {
+            if (shard != shardId) {
+                sendToShard(PaxosMessageType.SHARD_DECIDE, shard, decision);
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * releaseRemote: delete appt from the other groups that own one of its
+     * participants
+     * @param appt
+     */
+    public void releaseRemote(Appointment appt) {
+        EventRecord release = new EventRecord(EventOperation.DELETE, 0,
+                nodeId, appt);
+        for (int shard: shardsOf(appt)) {
+            if (shard != shardId) {
+                sendToShard(PaxosMessageType.SHARD_RELEASE, shard, release);
+            }
+        }
+    }
+
+    /**
+     * handleRequest: queue a SHARD_PREPARE, SHARD_DECIDE, SHARD_STATUS or
+     * SHARD_RELEASE from another group
+     * @param msg
+     */
+    public void handleRequest(PaxosMessage msg) {
+        requests.offer(msg);
+    }
+
+    public void handleVote(PaxosMessage msg) {
+        voteLock.lock();
+        Map<Integer, Integer> txnVotes = votes.get(msg.getInstanceId());
+        if (txnVotes != null) {
+            txnVotes.put(msg.getShardId(), msg.getPromisedId());
+            voteArrived.signal();
+        }
+        voteLock.unlock();
+    }
+
+    /**
+     * run: commit the requests of other groups through the local log, in
+     * arrival order, vote on the prepares and resolve the ones in doubt
+     */
+    public void run() {
+        long lastRecovery = System.currentTimeMillis();
+        while (true) {
+            PaxosMessage msg;
+            try {
+                msg = requests.poll(Constants.SHARD_RECOVERY_INTERVAL,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                LG.warning("ShardCoordinator interrupted, exit");
+                return;
+            }
+            if (msg != null) {
+                handle(msg);
+            }
+            if (System.currentTimeMillis() - lastRecovery >=
+                    Constants.SHARD_RECOVERY_INTERVAL) {
+                recoverInDoubt();
+                lastRecovery = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /** Helper functions **/
+
+    private void handle(PaxosMessage msg) {
+        EventRecord er = msg.getER();
+        Appointment appt = er.getAppointment();
+        switch (msg.getMsgType()) {
+            case SHARD_RELEASE:
+                releaseLocal(appt.getId());
+                break;
+            case SHARD_DECIDE:
+                node.decideLocal(appt,
+                        er.getOperation() == EventOperation.COMMIT_PREPARED);
+                break;
+            case SHARD_STATUS:
+                answerStatus(msg);
+                break;
+            case SHARD_PREPARE: {
+                boolean yes = node.prepareLocal(er);
+                LG.info("Vote " + yes + " on cross-shard add " + appt.getId());
+                PaxosMessage voteMsg = new PaxosMessage(
+                        PaxosMessageType.SHARD_VOTE, -1, -1, yes ? 1 : 0,
+                        nodeId, null);
+                voteMsg.setNamespace(namespace);
+                voteMsg.setInstance(appt.getId(), null);
+                voteMsg.setShard(shardId);
+                NodeAddress addr = Constants.SHARD_ADDR_MAPS.get(
+                        msg.getShardId()).get(msg.getNodeId());
+                voteMsg.sendToAddr(addr.getIp(), addr.getPort());
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * answerStatus: tell a group in doubt the outcome of its prepare. If the
+     * coordinator never logged one and is not waiting for votes on this
+     * node, an abort is logged, unless an outcome gets logged first.
+     */
+    private void answerStatus(PaxosMessage msg) {
+        Appointment appt = msg.getER().getAppointment();
+        Boolean outcome = node.getOutcome(appt.getId());
+        if (outcome == null) {
+            voteLock.lock();
+            boolean coordinating = votes.containsKey(appt.getId());
+            voteLock.unlock();
+            if (coordinating) {
+                return;
+            }
+            outcome = node.decideLocal(appt, false);
+            if (outcome == null) {
+                return;
+            }
+        }
+        PaxosMessage reply = new PaxosMessage(PaxosMessageType.SHARD_DECIDE,
+                -1, -1, -1, nodeId, EventRecord.decide(appt, outcome, nodeId));
+        reply.setNamespace(namespace);
+        reply.setShard(shardId);
+        NodeAddress addr = Constants.SHARD_ADDR_MAPS.get(
+                msg.getShardId()).get(msg.getNodeId());
+        reply.sendToAddr(addr.getIp(), addr.getPort());
+    }
+
+    /**
+     * recoverInDoubt: ask the coordinator group for the outcome of every
+     * prepare that has waited for SHARD_IN_DOUBT_TIMEOUT, and presume an
+     * abort for those this group coordinates
+     */
+    private void recoverInDoubt() {
+        long now = System.currentTimeMillis();
+        Map<String, EventRecord> current = new HashMap<>();
+        for (EventRecord er: node.getPrepared()) {
+            current.put(er.getAppointment().getId(), er);
+        }
+        inDoubtSince.keySet().retainAll(current.keySet());
+        for (Map.Entry<String, EventRecord> pair: current.entrySet()) {
+            long since = inDoubtSince.computeIfAbsent(pair.getKey(),
+                    k -> now);
+            if (now - since < Constants.SHARD_IN_DOUBT_TIMEOUT) {
+                continue;
+            }
+            EventRecord er = pair.getValue();
+            LG.info("Cross-shard add " + pair.getKey() + " in doubt");
+            if (er.getCoordinatorShard() == shardId) {
+                answerLocal(er);
+            } else {
+                sendToShard(PaxosMessageType.SHARD_STATUS,
+                        er.getCoordinatorShard(), er);
+            }
+            inDoubtSince.put(pair.getKey(), now);
+        }
+    }
+
+    /**
+     * answerLocal: resolve a prepare whose coordinator is in this group. The
+     * outcome was never logged here, so the coordinator has given up.
+     */
+    private void answerLocal(EventRecord er) {
+        voteLock.lock();
+        boolean coordinating = votes.containsKey(er.getAppointment().getId());
+        voteLock.unlock();
+        if (!coordinating) {
+            node.decideLocal(er.getAppointment(), false);
+        }
+    }
+
+    /**
+     * releaseLocal: delete a prepared appointment from the local group once
+     * the prepare, which may have been chosen but not applied yet, is applied
+     */
+    private void releaseLocal(String apptId) {
+        if (!node.awaitReadable()) {
+            LG.warning("Could not catch up before releasing " + apptId);
+        }
+        node.deleteLocal(apptId);
+    }
+
+    private static Set<Integer> shardsOf(Appointment appt) {
+        Set<Integer> shards = new TreeSet<>();
+        for (Integer p: appt.getParticipantsId()) {
+            shards.add(Constants.shardOf(p));
+        }
+        return shards;
+    }
+
+    /**
+     * sendToShard: send to one node of the given group, starting with the
+     * one picked by node id so that the coordinators spread their requests
+     * over the group, and moving on to the next while unreachable
+     */
+    private void sendToShard(PaxosMessageType type, int shard,
+                             EventRecord er) {
+        List<NodeAddress> addrs = new ArrayList<>(new TreeMap<>(
+                Constants.SHARD_ADDR_MAPS.get(shard)).values());
+        PaxosMessage msg = new PaxosMessage(type, -1, -1, -1, nodeId, er);
+        msg.setNamespace(namespace);
+        msg.setShard(shardId);
+        for (int i = 0; i < addrs.size(); ++i) {
+            NodeAddress addr = addrs.get((nodeId + i) % addrs.size());
+            if (msg.sendToAddr(addr.getIp(), addr.getPort())) {
+                return;
+            }
+        }
+        LG.warning("No node of shard " + shard + " is reachable");
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * SlotOwnership class: Mencius-style rotating log slot ownership.
+ * Log slot s is owned by node s % NODE_COUNT. The owner is implicitly
+ * prepared with ballot nodeId, the lowest ballot in its PREPARE_ID_INCREMENT
+ * partition, so it commits its own slots with a single PROPOSE round. Other
+ * nodes only ever use ballots of at least NODE_COUNT on slots they do not own.
+ * When a node learns slot s it skips its own unused slots below s by
+ * committing no-ops, and a slot whose owner stays silent is revoked by running
+ * full Paxos on it with a no-op. The revoker's ballot only grows between
+ * attempts, so competing revokers cannot lock each other out for good.
+ */
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class SlotOwnership extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            SlotOwnership.class.getName());
+
+    private PaxosNode node;
+    private int nodeId;
+    private String namespace;
+    private int nextOwnSlot;
+    private final LinkedBlockingQueue<Integer> learnedSlots;
+    private final Map<Integer, Integer> skipAcceptCount;
+    private final Proposer revoker;
+
+    private int stalledSlot;
+    private long stalledSince;
+
+    /* Constructor */
+    public SlotOwnership(PaxosNode node_obj, int first_free_slot) {
+        node = node_obj;
+        nodeId = node_obj.getNodeId();
+        namespace = node_obj.getNamespace();
+        nextOwnSlot = firstOwnedFrom(first_free_slot);
+        learnedSlots = new LinkedBlockingQueue<>();
+        skipAcceptCount = new HashMap<>();
+        revoker = new Proposer(nodeId, namespace);
+        stalledSlot = Constants.NULL_ID;
+        stalledSince = 0;
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    public static boolean isOwner(int slot, int node_id) {
+        return slot % Constants.NODE_COUNT == node_id;
+    }
+
+    public Proposer getRevoker() {
+        return revoker;
+    }
+
+    /**
+     * claimSlot: reserve the next owned slot that is not below minSlot
+     * @param minSlot
+     * @return
+     */
+    public synchronized int claimSlot(int minSlot) {
+        int slot = Math.max(nextOwnSlot, firstOwnedFrom(minSlot));
+        nextOwnSlot = slot + Constants.NODE_COUNT;
+        return slot;
+    }
+
+    /**
+     * onLearned: the node has learned slot logId, queue it so that the own
+     * unused slots below it get skipped
+     * @param logId
+     */
+    public void onLearned(int logId) {
+        learnedSlots.offer(logId);
+    }
+
+    /**
+     * handleAccept: count accepts for skip proposals, once a majority has
+     * accepted a skip it is announced to all learners
+     * @param msg
+     */
+    public void handleAccept(PaxosMessage msg) {
+        if (msg.getPId() != nodeId) {
+            return;
+        }
+        int logId = msg.getLogId();
+        boolean chosen = false;
+        synchronized (skipAcceptCount) {
+            if (!skipAcceptCount.containsKey(logId)) {
+                return;
+            }
+            int count = skipAcceptCount.get(logId) + 1;
+            skipAcceptCount.put(logId, count);
+            if (count >= Membership.forSlot(logId).getPhase2Quorum()) {
+                skipAcceptCount.remove(logId);
+                chosen = true;
+            }
+        }
+        if (chosen) {
+            PaxosMessage learnerNoticeMsg = new PaxosMessage(
+                    PaxosMessageType.LEARNER_NOTICE, nodeId, logId,
+                    Constants.NULL_ID, nodeId, EventRecord.noop(nodeId));
+            learnerNoticeMsg.setNamespace(namespace);
+            learnerNoticeMsg.sendToAll();
+        }
+    }
+
+    /**
+     * run: skip own slots below every learned slot, and revoke the first
+     * missing slot once its owner has been silent for REVOKE_TIMEOUT
+     */
+    public void run() {
+        while (true) {
+            Integer learned;
+            try {
+                learned = learnedSlots.poll(Constants.REVOKE_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                LG.warning("SlotOwnership interrupted, exit");
+                return;
+            }
+            if (learned != null) {
+                skipBelow(learned);
+            }
+            checkStalledSlot();
+        }
+    }
+
+    /** Helper functions **/
+
+    private int firstOwnedFrom(int slot) {
+        int offset = (nodeId - slot % Constants.NODE_COUNT +
+                Constants.NODE_COUNT) % Constants.NODE_COUNT;
+        return slot + offset;
+    }
+
+    private void skipBelow(int learned) {
+        List<Integer> skipped = new ArrayList<>();
+        synchronized (this) {
+            while (nextOwnSlot < learned) {
+                skipped.add(nextOwnSlot);
+                nextOwnSlot += Constants.NODE_COUNT;
+            }
+        }
+        for (int slot: skipped) {
+            LG.info("Skipping own slot " + slot);
+            synchronized (skipAcceptCount) {
+                skipAcceptCount.put(slot, 0);
+            }
+            PaxosMessage skipMsg = new PaxosMessage(PaxosMessageType.PROPOSE,
+                    nodeId, slot, -1, nodeId, EventRecord.noop(nodeId));
+            skipMsg.setNamespace(namespace);
+            skipMsg.sendToAll();
+        }
+    }
+
+    private void checkStalledSlot() {
+        int firstMissing = node.getFirstMissingLogId();
+        if (firstMissing == Constants.NULL_ID ||
+                isOwner(firstMissing, nodeId)) {
+            stalledSlot = Constants.NULL_ID;
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (firstMissing != stalledSlot) {
+            stalledSlot = firstMissing;
+            stalledSince = now;
+            return;
+        }
+        if (now - stalledSince < Constants.REVOKE_TIMEOUT) {
+            return;
+        }
+        LG.info("Revoking slot " + firstMissing);
+        /* Outbid any revoker this node's acceptor has promised to */
+        revoker.nextBallot(node.getAccepter().getPromisedId(firstMissing));
+        revoker.initEvent(firstMissing, EventRecord.noop(nodeId));
+        stalledSince = now;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * SpeculativeOverlay class: appointments added on this node that are shown
+ * and checked for conflicts before Paxos has chosen them. The overlay sits
+ * on top of the committed calendar. A background thread commits the pending
+ * adds in the order they were made; an add is promoted once the learner has
+ * applied it, and rolled back if a conflicting value wins the log first.
+ */
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+public class SpeculativeOverlay extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            SpeculativeOverlay.class.getName());
+
+    private PaxosNode node;
+    private final LinkedHashMap<String, Appointment> pending;
+    private final LinkedBlockingQueue<EventRecord> toCommit;
+
+    /* Constructor */
+    public SpeculativeOverlay(PaxosNode node_obj) {
+        node = node_obj;
+        pending = new LinkedHashMap<>();
+        toCommit = new LinkedBlockingQueue<>();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * submit: show er tentatively and queue it for commit
+     * @param er ADD event
+     */
+    public void submit(EventRecord er) {
+        Appointment appt = er.getAppointment();
+        synchronized (pending) {
+            pending.put(appt.getId(), appt);
+        }
+        toCommit.offer(er);
+    }
+
+    /**
+     * conflicts: whether appt overlaps a pending appointment
+     * @param appt
+     * @return
+     */
+    public boolean conflicts(Appointment appt) {
+        synchronized (pending) {
+            for (Appointment other: pending.values()) {
+                if (other.overlaps(appt)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * getPending: pending appointments of participant on day, in add order
+     * @param participant
+     * @param day
+     * @return
+     */
+    public List<Appointment> getPending(int participant, int day) {
+        List<Appointment> result = new ArrayList<>();
+        synchronized (pending) {
+            for (Appointment appt: pending.values()) {
+                if (appt.getDay() == day &&
+                        appt.getParticipantsId().contains(participant)) {
+                    result.add(appt);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * onApplied: the learner has applied these events, promote the pending
+     * ones among them
+     * @param ers
+     */
+    public void onApplied(List<EventRecord> ers) {
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            for (EventRecord er: ers) {
+                if (er.getOperation() == EventOperation.ADD) {
+                    pending.remove(er.getAppointment().getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * run: commit the pending adds one at a time, rolling back the ones that
+     * lost their slots to conflicting appointments
+     */
+    public void run() {
+        while (true) {
+            EventRecord er;
+            try {
+                er = toCommit.take();
+            } catch (InterruptedException e) {
+                LG.warning("SpeculativeOverlay interrupted, exit");
+                return;
+            }
+            Appointment appt = er.getAppointment();
+            if (node.commitAdd(er)) {
+                continue;
+            }
+            boolean rolledBack;
+            synchronized (pending) {
+                rolledBack = pending.remove(appt.getId()) != null;
+            }
+            if (rolledBack) {
+                System.out.println("Appointment \"" + appt.getName() +
+                        "\" rolled back because of conflicts");
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * WireStats class: counts Paxos messages and bytes sent by this process, and
+ * the commits made by its proposer, to report bytes on the wire per commit.
+ * Wuu-Bernstein gossip is counted apart, by message kind.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WireStats {
+    private static final Map<PaxosMessageType, AtomicLong> BYTES_BY_TYPE =
+            new ConcurrentHashMap<>();
+    private static final AtomicLong MESSAGES = new AtomicLong();
+    private static final AtomicLong BYTES = new AtomicLong();
+    private static final AtomicLong COMMITS = new AtomicLong();
+    private static final Map<String, AtomicLong> WUU_MESSAGES =
+            new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> WUU_BYTES =
+            new ConcurrentHashMap<>();
+    private static final AtomicLong WUU_ROUNDS = new AtomicLong();
+    /* Time until an own event is known to every node */
+    private static final AtomicLong WUU_CONVERGED = new AtomicLong();
+    private static final AtomicLong WUU_CONVERGENCE_TOTAL = new AtomicLong();
+    private static final AtomicLong WUU_CONVERGENCE_MAX = new AtomicLong();
+
+    public static void recordSent(PaxosMessageType type, int bytes) {
+        MESSAGES.incrementAndGet();
+        BYTES.addAndGet(bytes);
+        BYTES_BY_TYPE.computeIfAbsent(type, t -> new AtomicLong())
+                .addAndGet(bytes);
+    }
+
+    public static void recordWuuSent(String kind, int bytes) {
+        WUU_MESSAGES.computeIfAbsent(kind, k -> new AtomicLong())
+                .incrementAndGet();
+        WUU_BYTES.computeIfAbsent(kind, k -> new AtomicLong())
+                .addAndGet(bytes);
+    }
+
+    public static void recordWuuRound() {
+        WUU_ROUNDS.incrementAndGet();
+    }
+
+    public static void recordWuuConvergence(long millis) {
+        WUU_CONVERGED.incrementAndGet();
+        WUU_CONVERGENCE_TOTAL.addAndGet(millis);
+        WUU_CONVERGENCE_MAX.accumulateAndGet(millis, Math::max);
+    }
+
+    public static void recordCommit() {
+        COMMITS.incrementAndGet();
+    }
+
+    public static String report() {
+        long commits = COMMITS.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Messages sent: ").append(MESSAGES.get()).append("\n");
+        sb.append("Bytes sent: ").append(BYTES.get()).append("\n");
+        sb.append("Commits: ").append(commits).append("\n");
+        sb.append("Bytes per commit: ").append(
+                commits == 0 ? "-" : Long.toString(BYTES.get() / commits))
+                .append("\n");
+        for (PaxosMessageType type: PaxosMessageType.values()) {
+            AtomicLong bytes = BYTES_BY_TYPE.get(type);
+            if (bytes != null) {
+                sb.append(String.format("  %-18s %d\n", type, bytes.get()));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String wuuReport() {
+        StringBuilder sb = new StringBuilder();
+        for (String kind: new java.util.TreeSet<>(WUU_BYTES.keySet())) {
+            long messages = WUU_MESSAGES.get(kind).get();
+            long bytes = WUU_BYTES.get(kind).get();
+            sb.append(String.format("%-12s %d messages, %d bytes (%d avg)\n",
+                    kind, messages, bytes, bytes / messages));
+        }
+        long converged = WUU_CONVERGED.get();
+        sb.append("Gossip rounds: ").append(WUU_ROUNDS.get()).append("\n");
+        sb.append("Events converged: ").append(converged).append("\n");
+        sb.append("Convergence ms: ").append(converged == 0 ? "-" :
+                (WUU_CONVERGENCE_TOTAL.get() / converged) + " avg, " +
+                WUU_CONVERGENCE_MAX.get() + " max").append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * WitnessNode class: a voting node that only runs Acceptor logic.
+ * It keeps ballot numbers and digest-only accepted values, never stores
+ * Appointment payloads, never runs a Learner and never builds a timetable,
+ * yet it counts toward the quorums like any other acceptor.
+ */
+
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+public class WitnessNode {
+    private final static Logger LG = Logger.getLogger(
+            WitnessNode.class.getName());
+
+    private int nodeId;
+    /* Namespace -> acceptor state of that calendar */
+    private final Map<String, Acceptor> accepters;
+
+    /* Constructor */
+    public WitnessNode(int id) {
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+        nodeId = id;
+        String configError = Constants.checkWitnessConfig();
+        if (configError == null && !Constants.isWitness(nodeId)) {
+            configError = "Node " + nodeId + " is not in WITNESS_NODE_IDS";
+        }
+        if (configError != null) {
+            LG.severe(configError + ", exit");
+            System.exit(1);
+        }
+        accepters = new HashMap<>();
+        for (String namespace: Constants.NAMESPACES) {
+            accepters.put(namespace, new Acceptor(nodeId, true));
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * serve: handle acceptor messages from the given server socket forever
+     * @param server
+     */
+    public void serve(ServerSocket server) {
+        PeerLink.serve(server, paxosMsg -> {
+            LG.info("Witness received paxos message " +
+                    paxosMsg.getMsgType());
+            Acceptor accepter = accepters.get(paxosMsg.getNamespace());
+            if (accepter == null) {
+                LG.warning("Unknown namespace " + paxosMsg.getNamespace());
+            } else {
+                handleMessage(accepter, paxosMsg);
+            }
+        });
+    }
+
+    /**
+     * handleMessage: dispatch the message to the acceptor of its namespace
+     * @param accepter
+     * @param paxosMsg
+     */
+    private void handleMessage(Acceptor accepter, PaxosMessage paxosMsg) {
+        switch (paxosMsg.getMsgType()) {
+            case PREPARE:
+                accepter.handlePrepare(paxosMsg);
+                break;
+            case PROPOSE:
+                accepter.handlePropose(paxosMsg);
+                break;
+            case LEASE_REQUEST:
+                accepter.handleLeaseRequest(paxosMsg);
+                break;
+            case READ_INDEX_REQUEST:
+                accepter.handleReadIndexRequest(paxosMsg);
+                break;
+            default:
+                break;
+        }
+    }
+}
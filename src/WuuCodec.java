@@ -0,0 +1,175 @@
+/**
+ * WuuCodec class: compact binary encoding of Wuu-Bernstein gossip.
+ * Numbers are unsigned varints. A time table is sent as the rows that
+ * changed since the previous message on the same connection, each column as
+ * the increase over the previous value. Events are grouped by originating
+ * node with clocks as increases over the previous event of the group, and
+ * every appointment body is written once even when both its ADD and its
+ * DELETE record are in the message.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class WuuCodec {
+
+    /**
+     * writeTable: the rows of T that differ from base, then base := T
+     * @param out
+     * @param T
+     * @param base what the receiver knows of T on this connection
+     * @throws IOException
+     */
+    public static void writeTable(DataOutput out, int[][] T, int[][] base)
+            throws IOException {
+        List<Integer> changed = new ArrayList<>();
+        for (int r = 0; r < T.length; r++) {
+            if (!Arrays.equals(T[r], base[r])) {
+                changed.add(r);
+            }
+        }
+        writeVarint(out, changed.size());
+        for (int r: changed) {
+            writeVarint(out, r);
+            for (int s = 0; s < T[r].length; s++) {
+                /* Time tables only grow */
+                writeVarint(out, T[r][s] - base[r][s]);
+                base[r][s] = T[r][s];
+            }
+        }
+    }
+
+    /**
+     * readTable: apply the changed rows to base
+     * @param in
+     * @param base the table received last on this connection, updated
+     * @return a copy of the updated table
+     * @throws IOException
+     */
+    public static int[][] readTable(DataInput in, int[][] base)
+            throws IOException {
+        int rows = readVarint(in);
+        for (int i = 0; i < rows; i++) {
+            int r = readVarint(in);
+            for (int s = 0; s < base[r].length; s++) {
+                base[r][s] += readVarint(in);
+            }
+        }
+        int[][] result = new int[base.length][];
+        for (int r = 0; r < base.length; r++) {
+            result[r] = base[r].clone();
+        }
+        return result;
+    }
+
+    /**
+     * writeEvents: appointment bodies first, then the events by origin
+     * @param out
+     * @param events
+     * @throws IOException
+     */
+    public static void writeEvents(DataOutput out,
+                                   Collection<EventRecord> events)
+            throws IOException {
+        Map<String, Integer> apptIndex = new HashMap<>();
+        List<Appointment> appts = new ArrayList<>();
+        TreeMap<Integer, TreeMap<Integer, EventRecord>> byNode =
+                new TreeMap<>();
+        for (EventRecord eR: events) {
+            Appointment appt = eR.getAppointment();
+            if (!apptIndex.containsKey(appt.getId())) {
+                apptIndex.put(appt.getId(), appts.size());
+                appts.add(appt);
+            }
+            byNode.computeIfAbsent(eR.getERNodeId(), k -> new TreeMap<>())
+                    .put(eR.getERClock(), eR);
+        }
+
+        writeVarint(out, appts.size());
+        for (Appointment appt: appts) {
+            out.writeUTF(appt.getId());
+            out.writeUTF(appt.getName());
+            writeVarint(out, appt.getDay());
+            writeVarint(out, appt.getStartTime());
+            writeVarint(out, appt.getEndTime());
+            writeVarint(out, appt.getParticipantsId().size());
+            for (int participant: appt.getParticipantsId()) {
+                writeVarint(out, participant);
+            }
+            writeVarint(out, appt.getInitNode());
+        }
+
+        writeVarint(out, byNode.size());
+        for (Map.Entry<Integer, TreeMap<Integer, EventRecord>> group:
+                byNode.entrySet()) {
+            writeVarint(out, group.getKey());
+            writeVarint(out, group.getValue().size());
+            int prevClock = 0;
+            for (EventRecord eR: group.getValue().values()) {
+                writeVarint(out, eR.getERClock() - prevClock);
+                prevClock = eR.getERClock();
+                out.writeByte(eR.getOperation().ordinal());
+                writeVarint(out, apptIndex.get(eR.getAppointment().getId()));
+            }
+        }
+    }
+
+    public static HashSet<EventRecord> readEvents(DataInput in)
+            throws IOException {
+        int apptCount = readVarint(in);
+        List<Appointment> appts = new ArrayList<>(apptCount);
+        for (int i = 0; i < apptCount; i++) {
+            String id = in.readUTF();
+            String name = in.readUTF();
+            int day = readVarint(in);
+            int start = readVarint(in);
+            int end = readVarint(in);
+            int participantCount = readVarint(in);
+            ArrayList<Integer> participants = new ArrayList<>();
+            for (int j = 0; j < participantCount; j++) {
+                participants.add(readVarint(in));
+            }
+            int initNode = readVarint(in);
+            appts.add(new Appointment(id, name, day, start, end,
+                    participants, initNode));
+        }
+
+        HashSet<EventRecord> events = new HashSet<>();
+        int groups = readVarint(in);
+        for (int i = 0; i < groups; i++) {
+            int nodeId = readVarint(in);
+            int count = readVarint(in);
+            int clock = 0;
+            for (int j = 0; j < count; j++) {
+                clock += readVarint(in);
+                EventOperation op = EventOperation.values()[in.readByte()];
+                Appointment appt = appts.get(readVarint(in));
+                events.add(new EventRecord(op, clock, nodeId, appt));
+            }
+        }
+        return events;
+    }
+
+    /** Helper functions **/
+
+    private static void writeVarint(DataOutput out, int value)
+            throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
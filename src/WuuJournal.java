@@ -0,0 +1,320 @@
+/**
+ * WuuJournal class: append-only journal of the state changes of a WuuNode.
+ * Each insert, delete and receive appends one Delta instead of rewriting the
+ * whole node state. A background thread writes the queued deltas and syncs
+ * the file once per batch, so concurrent operations share one fsync. Every
+ * WUU_CHECKPOINT_INTERVAL deltas the node hands over a full state snapshot,
+ * which replaces the checkpoint file and starts an empty journal. Both files
+ * carry a generation number, so a journal older than the checkpoint is never
+ * replayed on top of it. Recovery reads the checkpoint, then replays the
+ * journal up to its last complete delta. After a failed write the journal
+ * is broken: deltas are no longer written and their sync reports them lost,
+ * until a checkpoint, which covers them, is written. The node hands one
+ * over with its next operation, and the journal takes one itself every
+ * WUU_JOURNAL_RETRY_INTERVAL while nothing else comes.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+public class WuuJournal extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            WuuJournal.class.getName());
+
+    private final String journalFile;
+    private final String checkpointFile;
+    /* Serialized node state, taken under the node lock */
+    private final Supplier<byte[]> snapshotter;
+    /* Delta or byte[] snapshot, in the order the node made them */
+    private final LinkedBlockingQueue<Object> toWrite;
+    private FileOutputStream fileOut;
+    private ObjectOutputStream objOut;
+    private int generation;
+    private long appended;
+    private int sinceCheckpoint;
+    /* A write failed and no checkpoint has been written since */
+    private volatile boolean broken;
+
+    /* Sequence number of the last delta that has been handled */
+    private long synced;
+    /* First delta not on disk nor covered by a checkpoint, if broken */
+    private long lostFrom;
+    private final Lock syncLock;
+    private final Condition syncDone;
+
+    /* Constructor */
+    public WuuJournal(String journal_file, String checkpoint_file,
+                      Supplier<byte[]> node_snapshotter) {
+        journalFile = journal_file;
+        checkpointFile = checkpoint_file;
+        snapshotter = node_snapshotter;
+        toWrite = new LinkedBlockingQueue<>();
+        generation = 0;
+        appended = 0;
+        sinceCheckpoint = 0;
+        synced = 0;
+        lostFrom = Long.MAX_VALUE;
+        syncLock = new ReentrantLock();
+        syncDone = syncLock.newCondition();
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    /**
+     * readCheckpoint: the last node state snapshot
+     * @return null if there is no checkpoint yet
+     */
+    public byte[] readCheckpoint() {
+        File fd = new File(checkpointFile);
+        if (!fd.exists()) {
+            return null;
+        }
+        try (ObjectInputStream objIn = new ObjectInputStream(
+                new FileInputStream(fd))) {
+            generation = objIn.readInt();
+            return (byte[]) objIn.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            LG.severe("Cannot read checkpoint " + checkpointFile + " " + e);
+            return null;
+        }
+    }
+
+    /**
+     * replay: the deltas of the journal written after the checkpoint, up to
+     * the first incomplete one. Call after readCheckpoint.
+     * @return
+     */
+    public List<Delta> replay() {
+        List<Delta> deltas = new ArrayList<>();
+        File fd = new File(journalFile);
+        if (!fd.exists()) {
+            return deltas;
+        }
+        try (ObjectInputStream objIn = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(fd)))) {
+            if (objIn.readInt() != generation) {
+                /* Crashed after the checkpoint that covers this journal */
+                return deltas;
+            }
+            while (true) {
+                deltas.add((Delta) objIn.readObject());
+            }
+        } catch (EOFException | StreamCorruptedException e) {
+            /* End of the journal, or a delta torn by a crash */
+        } catch (IOException | ClassNotFoundException e) {
+            LG.warning("Cannot read journal " + journalFile + " " + e);
+        }
+        return deltas;
+    }
+
+    /**
+     * compact: write the recovered state as a new checkpoint and start an
+     * empty journal. Call once, before the journal thread is started.
+     * @param snapshot serialized node state
+     * @throws IOException
+     */
+    public void compact(byte[] snapshot) throws IOException {
+        writeCheckpoint(snapshot);
+    }
+
+    /**
+     * append: queue a delta. Caller must hold the node lock so that deltas
+     * are queued in the order they were made.
+     * @param delta
+     * @return sequence number to pass to sync
+     */
+    public long append(Delta delta) {
+        toWrite.offer(delta);
+        return ++appended;
+    }
+
+    /**
+     * wantsCheckpoint: whether the node should hand over a snapshot, always
+     * while the journal is broken. Caller must hold the node lock.
+     * @return
+     */
+    public boolean wantsCheckpoint() {
+        return ++sinceCheckpoint >= Constants.WUU_CHECKPOINT_INTERVAL ||
+                broken;
+    }
+
+    /**
+     * checkpoint: queue a full state snapshot. It covers every delta queued
+     * before it, so the journal restarts empty once it is written. Caller
+     * must hold the node lock.
+     * @param snapshot serialized node state
+     */
+    public void checkpoint(byte[] snapshot) {
+        sinceCheckpoint = 0;
+        toWrite.offer(snapshot);
+    }
+
+    /**
+     * sync: wait until the delta with the given sequence number has been
+     * handled
+     * @param seq
+     * @return false if it could not be written and no checkpoint covers it
+     * yet
+     */
+    public boolean sync(long seq) {
+        syncLock.lock();
+        try {
+            while (synced < seq) {
+                syncDone.await();
+            }
+            return seq < lostFrom;
+        } catch (InterruptedException e) {
+            LG.warning("Interrupted while waiting for journal sync " + e);
+            return false;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * run: write the queued deltas in batches, one fsync per batch
+     */
+    public void run() {
+        while (true) {
+            List<Object> batch = new ArrayList<>();
+            try {
+                Object first = broken ? toWrite.poll(
+                        Constants.WUU_JOURNAL_RETRY_INTERVAL,
+                        TimeUnit.MILLISECONDS) : toWrite.take();
+                /* Idle while broken: retry with a fresh snapshot */
+                batch.add(first != null ? first : snapshotter.get());
+            } catch (InterruptedException e) {
+                LG.warning("WuuJournal interrupted, exit");
+                return;
+            }
+            toWrite.drainTo(batch);
+            long deltas = 0;
+            for (Object item: batch) {
+                try {
+                    if (item instanceof Delta) {
+                        ++deltas;
+                        if (!broken) {
+                            objOut.writeObject(item);
+                            objOut.reset();
+                        }
+                    } else {
+                        writeCheckpoint((byte[]) item);
+                        broken = false;
+                    }
+                } catch (IOException e) {
+                    LG.severe("Cannot write journal " + journalFile + " " + e);
+                    broken = true;
+                }
+            }
+            if (!broken) {
+                try {
+                    objOut.flush();
+                    fileOut.getFD().sync();
+                } catch (IOException e) {
+                    LG.severe("Cannot sync journal " + journalFile + " " + e);
+                    broken = true;
+                }
+            }
+            syncLock.lock();
+            if (broken) {
+                lostFrom = Math.min(lostFrom, synced + 1);
+            } else {
+                lostFrom = Long.MAX_VALUE;
+            }
+            synced += deltas;
+            syncDone.signalAll();
+            syncLock.unlock();
+        }
+    }
+
+    /** Helper functions **/
+
+    /**
+     * writeCheckpoint: replace the checkpoint file by one of the next
+     * generation, then start an empty journal of that generation
+     */
+    private void writeCheckpoint(byte[] snapshot) throws IOException {
+        File tmp = new File(checkpointFile + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            ObjectOutputStream checkpointOut = new ObjectOutputStream(out);
+            checkpointOut.writeInt(generation + 1);
+            checkpointOut.writeObject(snapshot);
+            checkpointOut.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(checkpointFile))) {
+            throw new IOException("Cannot replace " + checkpointFile);
+        }
+        ++generation;
+        if (objOut != null) {
+            objOut.close();
+        }
+        fileOut = new FileOutputStream(journalFile);
+        objOut = new ObjectOutputStream(new BufferedOutputStream(fileOut));
+        objOut.writeInt(generation);
+        objOut.flush();
+        fileOut.getFD().sync();
+    }
+
+    /**
+     * Delta class: state changes of one WuuNode operation. Applying a delta
+     * again leaves the state unchanged.
+     */
+    public static class Delta implements Serializable {
+        /* The computed default, journals written before remain replayable */
+        private static final long serialVersionUID = -413145170631233992L;
+
+        /* New event records of the log, the calendar follows from them */
+        private ArrayList<EventRecord> events = new ArrayList<>();
+        /* Own clock and appointment counter after the operation */
+        private int clock;
+        private int apptNo;
+        /* Time table received from sender, null for local operations */
+        private int[][] table;
+        private int sender;
+
+        /* Constructor */
+        public Delta(int clock, int apptNo) {
+            this.clock = clock;
+            this.apptNo = apptNo;
+        }
+
+        public void addEvent(EventRecord eR) {
+            events.add(eR);
+        }
+
+        public void setTable(int[][] table, int sender) {
+            this.table = table;
+            this.sender = sender;
+        }
+
+        /* Getters */
+        public List<EventRecord> getEvents() {
+            return events;
+        }
+
+        public int getClock() {
+            return clock;
+        }
+
+        public int getApptNo() {
+            return apptNo;
+        }
+
+        public int[][] getTable() {
+            return table;
+        }
+
+        public int getSender() {
+            return sender;
+        }
+    }
+}
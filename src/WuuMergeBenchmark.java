@@ -0,0 +1,97 @@
+/**
+ * WuuMergeBenchmark class: times how a Wuu-Bernstein node merges a large
+ * received NP and resolves the calendar days it touches. The NP holds ADDs
+ * from every node with random days, slots and participants, so many of them
+ * conflict, and DELETEs of a share of those ADDs. Each round merges it into
+ * a fresh node that is not connected to any peer.
+ * Usage: java WuuMergeBenchmark [events] [rounds]
+ */
+
+import java.util.*;
+
+public class WuuMergeBenchmark {
+    private static final int DEFAULT_EVENTS = 10000;
+    private static final int DEFAULT_ROUNDS = 10;
+    /* One event in DELETE_EVERY deletes an earlier appointment */
+    private static final int DELETE_EVERY = 10;
+
+    public static void main(String[] args) {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) :
+                DEFAULT_EVENTS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) :
+                DEFAULT_ROUNDS;
+        List<EventRecord> np = buildNP(events, new Random(42));
+        System.out.println("NP of " + np.size() + " events, " + rounds +
+                " rounds");
+
+        long mergeTotal = 0;
+        long mergeBest = Long.MAX_VALUE;
+        long resolveTotal = 0;
+        long resolveBest = Long.MAX_VALUE;
+        int shown = 0;
+        for (int round = 0; round < rounds; ++round) {
+            WuuNode node = new WuuNode(0, false);
+            /* The order the NP arrives in must not matter */
+            List<EventRecord> received = new ArrayList<>(np);
+            Collections.shuffle(received, new Random(round));
+
+            long start = System.nanoTime();
+            shown = node.mergeReceived(received);
+            long merged = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            node.resolveAllDays();
+            long resolved = System.nanoTime() - start;
+
+            mergeTotal += merged;
+            mergeBest = Math.min(mergeBest, merged);
+            resolveTotal += resolved;
+            resolveBest = Math.min(resolveBest, resolved);
+        }
+        System.out.println("Appointments shown: " + shown);
+        System.out.printf("merge:       best %8.2f ms, mean %8.2f ms%n",
+                mergeBest / 1e6, mergeTotal / 1e6 / rounds);
+        System.out.printf("resolveDays: best %8.2f ms, mean %8.2f ms%n",
+                resolveBest / 1e6, resolveTotal / 1e6 / rounds);
+    }
+
+    /**
+     * buildNP: events created round-robin by the nodes, each with its own
+     * clock
+     */
+    private static List<EventRecord> buildNP(int events, Random random) {
+        int nodes = Constants.TOTAL_NODES;
+        int[] clocks = new int[nodes];
+        int[] apptNos = new int[nodes];
+        List<Appointment> added = new ArrayList<>();
+        List<EventRecord> np = new ArrayList<>();
+        for (int i = 0; i < events; ++i) {
+            int creator = i % nodes;
+            int clock = ++clocks[creator];
+            if (i % DELETE_EVERY == DELETE_EVERY - 1 && !added.isEmpty()) {
+                Appointment appt = added.remove(random.nextInt(added.size()));
+                np.add(new EventRecord(EventOperation.DELETE, clock, creator,
+                        appt));
+                continue;
+            }
+            ArrayList<Integer> participants = new ArrayList<>();
+            participants.add(creator);
+            for (int p = 0; p < nodes; ++p) {
+                if (p != creator && random.nextInt(3) == 0) {
+                    participants.add(p);
+                }
+            }
+            int start = random.nextInt(Constants.SLOT_PER_DAY - 1);
+            int end = start + 1 + random.nextInt(Math.min(4,
+                    Constants.SLOT_PER_DAY - start - 1));
+            String id = String.format("n%03da%04d", creator,
+                    apptNos[creator]++);
+            Appointment appt = new Appointment(id, "bench" + i,
+                    random.nextInt(Constants.TOTAL_DAY), start, end,
+                    participants, creator);
+            added.add(appt);
+            np.add(new EventRecord(EventOperation.ADD, clock, creator, appt));
+        }
+        return np;
+    }
+}
@@ -15,25 +15,35 @@ public class WuuNode {
     private int numNodes;
     private int[] ports;
     private String[] hostNames;
-    private Set<EventRecord> log;
+    private Map<Long, EventRecord> log;  // Events not yet known to every node, by key
     
     private Object lock = new Object();
     private int clock;
     private String[][][] calendar;
     private int[][] T;  // 2-dimensional time table
-    private Set<EventRecord> PL;  // Partial Log
+    private PartialLog PL;  // Partial Log, indexed by origin and clock
+    private TreeMap<Integer, Long> createdAt;  // Own events not yet stable: clock -> creation time
     private Set<EventRecord> NE;  
     // At each receive event, a node extracts NE of which it has not yet learned from NP
     private Set<EventRecord> NP;
     // NP:={eR|eR belong to Li and there exists a node in the sending destinations k that not hasrec(Ti, eR, k)}
     private HashMap<String, Appointment> currentAppts;  // dictionary (Vi in the algorithm), key: apppointment ID
-    private boolean[] sendFail;  // keep track of sending message
+    private HashMap<String, EventRecord> apptRecords;  // ADD records not deleted, key: appointment ID
+    private HashMap<Integer, HashMap<String, EventRecord>> recordsByDay;  // apptRecords by day
+    private HashMap<Integer, HashSet<String>> shownByDay;  // IDs of currentAppts by day
+    private HashMap<String, EventRecord> deletedIds;  // Deleted appointment ID -> DELETE, their ADDs are not taken again
+    private HashSet<String> ownLosers;  // Own appointments hidden by an earlier one, to be deleted
+    // The calendar is a function of apptRecords: in (clock, node ID) order,
+    // an appointment is shown unless it overlaps one shown before it, so
+    // every replica with the same records shows the same calendar.
+    private WuuPeer[] peers;  // Outbound queue and connection per node
     
     private int apptNo;  
     // For appointment id. The number of appointments that are created by this 
     // node, increment the number after creating a new Appointment
     
-    private String nodeStateFile;
+    private String nodeStateFile;  // Full state saved before the journal
+    private WuuJournal journal;
     // Calendar element: null (default) means vacant; or appointment ID
     private static final String CALENDAR_VACANT = null;
     // Simplify as a calendar which spans 7 days and in 30 minute increments.
@@ -44,39 +54,85 @@ public class WuuNode {
     //private static final String ER_OP_DELETE = "delete";
     // Send/Receive message operations:
     private static final int MSG_SEND_LOG = 0;
-    private static final int MSG_DELETE_CONFLICT = 1;
+    private static final int MSG_DIGEST = 2;
+    private static final int MSG_BUCKETS = 3;
+    private static final int MSG_PULL = 4;
     
     /**
      * Constructor of Node.
      * @param nodeId
      */
     public WuuNode(int nodeId) {
+        this(nodeId, true);
+    }
+
+    /**
+     * Constructor of Node. A node that is not connected keeps its state in
+     * memory only: no journal, no peers, no gossip. For WuuMergeBenchmark.
+     * @param nodeId
+     * @param connected
+     */
+    WuuNode(int nodeId, boolean connected) {
         this.nodeId = nodeId;
         this.numNodes = Constants.TOTAL_NODES;
         this.ports = Constants.NODE_PORTS;
         this.hostNames = Constants.NODE_HOSTNAMES;
-        this.log = new HashSet<>();
+        this.log = new HashMap<>();
         
         this.clock = 0;
         this.calendar = new String[numNodes][CALENDAR_DAYS][CALENDAR_TIMESLOTS];
         this.T = new int[numNodes][numNodes];
-        this.PL = new HashSet<>();
+        this.PL = new PartialLog(numNodes);
         this.NE = new HashSet<>();
         this.NP = new HashSet<>();
         this.currentAppts = new HashMap<>();
+        this.apptRecords = new HashMap<>();
+        this.recordsByDay = new HashMap<>();
+        this.shownByDay = new HashMap<>();
+        this.deletedIds = new HashMap<>();
+        this.ownLosers = new HashSet<>();
+        this.createdAt = new TreeMap<>();
         
         this.apptNo = 0;  
         
         this.nodeStateFile = nodeId + "node_state.txt";
+        this.journal = new WuuJournal(nodeId + "node_journal.ser",
+                nodeId + "node_checkpoint.ser", this::snapshotNodeState);
         
-        // Track if this node sends message to other nodes successfully
-        this.sendFail = new boolean[this.numNodes];
-        for (int i = 0; i < sendFail.length; i++) {
-            sendFail[i] = false;
+        this.peers = new WuuPeer[this.numNodes];
+        if (!connected) {
+            return;
+        }
+        for (int k = 0; k < numNodes; k++) {
+            if (k != nodeId) {
+                peers[k] = new WuuPeer(this, k, hostNames[k], ports[k]);
+            }
         }
         
         // For failure recovery
         restoreNodeState();
+        this.journal.start();
+        for (WuuPeer peer:peers) {
+            if (peer != null) {
+                peer.start();
+            }
+        }
+        // Losers of a run that stopped before deleting them
+        synchronized(lock) {
+            for (EventRecord er:apptRecords.values()) {
+                if (er.getERNodeId() == this.nodeId &&
+                        !currentAppts.containsKey(er.getAppointment().getId())) {
+                    ownLosers.add(er.getAppointment().getId());
+                }
+            }
+        }
+        deleteLosers();
+        if (Constants.WUU_GOSSIP_INTERVAL > 0) {
+            startGossip(Constants.WUU_GOSSIP_INTERVAL, Constants.WUU_GOSSIP_FANOUT);
+        }
+        if (Constants.WUU_ANTI_ENTROPY_INTERVAL > 0) {
+            startAntiEntropy(Constants.WUU_ANTI_ENTROPY_INTERVAL);
+        }
     }
 
     public int getNodeId() {
@@ -116,21 +172,15 @@ public class WuuNode {
         
         // According to the local copy of calendar, every participant is available.
         if (!conflict) {
-            String id = String.format("n%03da%04d", nodeId, apptNo);
-            Appointment newAppointment = new Appointment(id,
-                    apptName, dayIndex, startTimeIndex, endTimeIndex, participants, this.nodeId);
-            this.apptNo++;
-            
-            // Add the appointment to local calendar
-            for (int participant : participants) {
-                synchronized(lock) {
-                    for (int t = startTimeIndex; t < endTimeIndex; t++) {
-                        this.calendar[participant][dayIndex][t] = newAppointment.getId();
-                    }
-                }
+            Appointment newAppointment;
+            synchronized(lock) {
+                String id = String.format("n%03da%04d", nodeId, apptNo);
+                newAppointment = new Appointment(id, apptName, dayIndex,
+                        startTimeIndex, endTimeIndex, participants, this.nodeId);
+                this.apptNo++;
             }
             
-            // Add the event record to log
+            // Add the event record to log and the appointment to calendar
             insert(newAppointment);
             
             // Send partial log to all other participants
@@ -146,6 +196,154 @@ public class WuuNode {
         System.out.println("Appointment \"" + apptName + "\" added");
     }
     
+    /**
+     * Create an appointment whose only participant is this node, for a hybrid
+     * Paxos node. The caller has checked conflicts against both paths. The
+     * event record reaches the other nodes through lazy replication.
+     * @param apptName Name of the appointment
+     * @param dayIndex
+     * @param startTimeIndex
+     * @param endTimeIndex
+     * @return the new appointment
+     */
+    public Appointment insertSolo(String apptName, int dayIndex,
+            int startTimeIndex, int endTimeIndex) {
+        ArrayList<Integer> participants = new ArrayList<>();
+        participants.add(this.nodeId);
+        Appointment newAppointment;
+        synchronized(lock) {
+            // "w" keeps the ids apart from the ones of the Paxos log
+            String id = String.format("n%03dw%04d", nodeId, apptNo);
+            newAppointment = new Appointment(id, apptName, dayIndex,
+                    startTimeIndex, endTimeIndex, participants, this.nodeId);
+            this.apptNo++;
+        }
+        insert(newAppointment);
+        return newAppointment;
+    }
+
+    /**
+     * Get a copy of the current appointments (the dictionary).
+     * @return
+     */
+    public List<Appointment> getAppointments() {
+        synchronized(lock) {
+            return new ArrayList<>(this.currentAppts.values());
+        }
+    }
+
+    public Appointment getAppointment(String apptId) {
+        synchronized(lock) {
+            return this.currentAppts.get(apptId);
+        }
+    }
+
+    /**
+     * Start push-pull gossip: every interval milliseconds, pick fanout
+     * random other nodes, push <NP, T> to them and ask each of them to push
+     * theirs back. An event then reaches every node in O(log N) rounds,
+     * whoever its participants are, and T, even with an empty NP, lets the
+     * nodes find the events that have become stable. Nodes the failure
+     * detector reports down are picked last.
+     * @param interval
+     * @param fanout
+     */
+    private void startGossip(final int interval, final int fanout) {
+        Runnable runnable = new Runnable() {
+            public void run() {
+                List<Integer> others = new ArrayList<>();
+                for (int k = 0; k < numNodes; k++) {
+                    if (k != nodeId) {
+                        others.add(k);
+                    }
+                }
+                while (!others.isEmpty()) {
+                    try {
+                        Thread.sleep(interval);
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                    Collections.shuffle(others);
+                    /* Live peers first, dead ones only when too few are left */
+                    others.sort(Comparator.comparing(FailureDetector::isDead));
+                    for (int k:others.subList(0, Math.min(fanout, others.size()))) {
+                        send(k, null, MSG_SEND_LOG);
+                        peers[k].pull();
+                    }
+                    WireStats.recordWuuRound();
+                }
+            }
+        };
+        Thread gossip = new Thread(runnable);
+        gossip.setDaemon(true);
+        gossip.start();
+    }
+
+    /**
+     * Start anti-entropy: every interval milliseconds, send the digest of
+     * the ADD records to a random other node, one that is not down if
+     * there is any. The node
+     * answers with the ADD records of the buckets that differ, so replicas
+     * converge even when nothing new is created.
+     * @param interval
+     */
+    private void startAntiEntropy(final int interval) {
+        Runnable runnable = new Runnable() {
+            public void run() {
+                Random random = new Random();
+                while (numNodes > 1) {
+                    try {
+                        Thread.sleep(interval);
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                    List<Integer> live = new ArrayList<>();
+                    List<Integer> dead = new ArrayList<>();
+                    for (int k = 0; k < numNodes; k++) {
+                        if (k == nodeId) {
+                            continue;
+                        }
+                        if (FailureDetector.isDead(k)) {
+                            dead.add(k);
+                        }
+                        else {
+                            live.add(k);
+                        }
+                    }
+                    List<Integer> candidates = live.isEmpty() ? dead : live;
+                    if (!candidates.isEmpty()) {
+                        peers[candidates.get(random.nextInt(candidates.size()))].sendDigest();
+                    }
+                }
+            }
+        };
+        Thread antiEntropy = new Thread(runnable);
+        antiEntropy.setDaemon(true);
+        antiEntropy.start();
+    }
+
+    /**
+     * Digest of the ADD records: one hash per (day, participant) bucket,
+     * over the IDs of the appointments in it.
+     * @return
+     */
+    private int[] digest() {
+        int[] buckets = new int[CALENDAR_DAYS * numNodes];
+        synchronized(lock) {
+            for (EventRecord er:apptRecords.values()) {
+                Appointment appt = er.getAppointment();
+                // Order-independent: sum of mixed ID hashes
+                int h = appt.getId().hashCode() * 0x9E3779B9;
+                for (int participant:appt.getParticipantsId()) {
+                    buckets[appt.getDay() * numNodes + participant] += h;
+                }
+            }
+        }
+        return buckets;
+    }
+
     /**
      * The user can cancel an scheduled appointment it created.
      * Update the local calendar and add the event to the log.
@@ -153,36 +351,24 @@ public class WuuNode {
      * @param apptId the unique id of the appointment to be deleted
      */
     public void deleteAppointment(String apptId) {
-        Appointment deletedAppt = null;
+        Appointment deletedAppt;
+        long seq;
         synchronized(lock) {
             // Get the scheduled appointment which to be deleted
-            for (String deleteId:this.currentAppts.keySet()) {
-                if (deleteId.equals(apptId)) {
-                    deletedAppt = currentAppts.get(deleteId);
-                }
+            deletedAppt = currentAppts.get(apptId);
+            if (deletedAppt == null) {
+                return;
             }
-            
-            if (deletedAppt != null) {
-                // Delete from dictionary and log the event
-                delete(deletedAppt);
-                
-                // Update local calendar
-                int dayIndex = deletedAppt.getDay();
-                int startTimeIndex = deletedAppt.getStartTime();
-                int endTimeIndex = deletedAppt.getEndTime();
-                for (int participant:deletedAppt.getParticipantsId()) {
-                    for (int i = startTimeIndex; i < endTimeIndex; i++) {
-                        this.calendar[participant][dayIndex][i] = CALENDAR_VACANT;
-                    }
-                }
-                
-                // Send message to all other participants
-                if (deletedAppt.getParticipantsId().size() > 1) {
-                    for (int participant:deletedAppt.getParticipantsId()) {
-                        if (participant != this.nodeId) {
-                            send(participant, deletedAppt, MSG_SEND_LOG);
-                        }
-                    }
+            // Delete from dictionary and calendar, and log the event
+            seq = logDelete(deletedAppt);
+        }
+        syncJournal(seq);
+        
+        // Send message to all other participants
+        if (deletedAppt.getParticipantsId().size() > 1) {
+            for (int participant:deletedAppt.getParticipantsId()) {
+                if (participant != this.nodeId) {
+                    send(participant, deletedAppt, MSG_SEND_LOG);
                 }
             }
         }
@@ -205,15 +391,22 @@ public class WuuNode {
      * @param appointment the appointment to be added
      */
     public void insert(Appointment appointment) {
-        this.clock++;
-        this.T[this.nodeId][this.nodeId] = this.clock;
-        EventRecord eR = new EventRecord(EventOperation.ADD, this.clock, this.nodeId, appointment);
-        addToLog(eR);
+        long seq;
         synchronized(lock) {
+            // The clock, T and the log change together, as seen by writeLog
+            this.clock++;
+            this.T[this.nodeId][this.nodeId] = this.clock;
+            EventRecord eR = new EventRecord(EventOperation.ADD, this.clock, this.nodeId, appointment);
+            addToLog(eR);
             PL.add(eR);
-            currentAppts.put(appointment.getId(), appointment);
-            saveNodeState();
+            createdAt.put(eR.getERClock(), System.currentTimeMillis());
+            putRecord(eR);
+            resolveDays(Collections.singleton(appointment.getDay()));
+            WuuJournal.Delta delta = new WuuJournal.Delta(this.clock, this.apptNo);
+            delta.addEvent(eR);
+            seq = logDelta(delta);
         }
+        syncJournal(seq);
     }
     
     /**
@@ -222,282 +415,251 @@ public class WuuNode {
      * @param appointment the appointment to be deleted
      */
     public void delete(Appointment appointment) {
+        long seq;
+        synchronized(lock) {
+            seq = logDelete(appointment);
+        }
+        syncJournal(seq);
+    }
+
+    /**
+     * Log a DELETE of the appointment and apply it. Caller must hold lock,
+     * then sync the journal after releasing it.
+     * @param appointment the appointment to be deleted
+     * @return journal sequence number of the delete
+     */
+    private long logDelete(Appointment appointment) {
+        // The clock, T and the log change together, as seen by writeLog
         this.clock++;
         this.T[this.nodeId][this.nodeId] = this.clock;
         EventRecord eR = new EventRecord(EventOperation.DELETE, this.clock, this.nodeId, appointment);
         addToLog(eR);
-        synchronized(lock) {
-            PL.add(eR);
-            currentAppts.entrySet().removeIf(e -> e.getKey().equals(appointment.getId()));
-            saveNodeState();
-        }
+        PL.add(eR);
+        createdAt.put(eR.getERClock(), System.currentTimeMillis());
+        removeRecord(appointment.getId());
+        deletedIds.put(appointment.getId(), eR);
+        resolveDays(Collections.singleton(appointment.getDay()));
+        WuuJournal.Delta delta = new WuuJournal.Delta(this.clock, this.apptNo);
+        delta.addEvent(eR);
+        return logDelta(delta);
     }
     
     /**
      * Communicative method.
-     * Case A: Wuu & Bernstein: Creates NP, then sends <NP, T> to destination node.
-     * Case B: Notify the initiator node that the appointment it creates 
-     *          conflicts with the schedule.
+     * Wuu & Bernstein: Queues a <NP, T> shipment to destination node.
+     * Pending shipments are coalesced into one.
      * @param destinationNode the node to which send the message
-     * @param appt for case B, the appointment that is detected conflict
-     * @param message to determine which case
+     * @param appt the appointment that caused the message
+     * @param message MSG_SEND_LOG
      */
     private void send(final int destinationNode, Appointment appt, int message) {
-
-        //System.out.println("send");
-        // For case A, update NP
         if (message == MSG_SEND_LOG) {
-            this.NP.clear();
-            synchronized(lock) {
-                for (EventRecord eR:this.PL) {
-                    if (!hasRec(this.T, eR, destinationNode)) {
-                        this.NP.add(eR);
-                    }
-                }
-                saveNodeState();
-            }
-        }
-        
-        try {
-            Socket socket = new Socket(hostNames[destinationNode], ports[destinationNode]);
-            //System.out.println(hostNames[destinationNode]);
-            //System.out.println(ports[destinationNode]);
-            OutputStream out = socket.getOutputStream();
-            ObjectOutputStream objectOutput = new ObjectOutputStream(out);
-            objectOutput.writeInt(message);
-            
-            synchronized(lock) {
-                switch (message) {
-                    case MSG_SEND_LOG:
-                        objectOutput.writeObject(this.NP);
-                        /* for(EventRecord er : this.NP) {
-                            System.out.println(er.getOperation());
-                        } */
-                        objectOutput.writeObject(this.T);
-                        break;
-                        
-                    case MSG_DELETE_CONFLICT:
-                        objectOutput.writeObject(appt);
-                }
-            }
-            
-            objectOutput.writeInt(this.nodeId);
-            objectOutput.close();
-            out.close();
-            socket.close();
-            sendFail[destinationNode] = false;
+            peers[destinationNode].shipLog();
         }
-        catch (ConnectException | UnknownHostException e) {
-            e.printStackTrace();
-            // Create new thread to keep trying to send
-            if (!sendFail[destinationNode]) { // start if not started yet
-                sendFail[destinationNode] = true;
-                Runnable runnable = new Runnable() {
-                    public synchronized void run() {
-                        while (sendFail[destinationNode]) {
-                            try {
-                                Thread.sleep(10000);
-                                send(destinationNode, appt, message);
-                            }
-                            catch (InterruptedException ie) {
-                                ie.printStackTrace();
-                            }
-                        }
-                    }
-                };
-                new Thread(runnable).start();
+    }
+    
+    /**
+     * Write a <NP, T> message for destinationNode, with NP the suffix of PL
+     * above T[destination], in the WuuCodec encoding. Called by the peer
+     * when the message goes out. <NP, T> is encoded under the lock, the
+     * socket is written after releasing it. Nothing is written when NP is
+     * empty and the destination already has T.
+     * @param objectOutput
+     * @param destinationNode
+     * @param sentTable T as last written on this connection, updated
+     * @return whether a message was written
+     * @throws IOException
+     */
+    boolean writeLog(ObjectOutputStream objectOutput, int destinationNode,
+            int[][] sentTable) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DataOutputStream encoder = new DataOutputStream(encoded);
+        synchronized(lock) {
+            this.NP = PL.unknownTo(this.T, destinationNode);
+            if (this.NP.isEmpty() && Arrays.deepEquals(this.T, sentTable)) {
+                return false;
             }
+            WuuCodec.writeEvents(encoder, this.NP);
+            WuuCodec.writeTable(encoder, this.T, sentTable);
         }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }    
+        objectOutput.writeInt(MSG_SEND_LOG);
+        objectOutput.write(encoded.toByteArray());
+        objectOutput.writeInt(this.nodeId);
+        return true;
+    }
+    
+    /**
+     * Write this node's digest. Called by the peer when the message goes out.
+     * @param objectOutput
+     * @throws IOException
+     */
+    void writeDigest(ObjectOutputStream objectOutput) throws IOException {
+        objectOutput.writeInt(MSG_DIGEST);
+        objectOutput.writeObject(digest());
+        objectOutput.writeInt(this.nodeId);
+    }
+    
+    /**
+     * Write a request for the peer's <NP, T>. Called by the peer when the
+     * message goes out.
+     * @param objectOutput
+     * @throws IOException
+     */
+    void writePull(ObjectOutputStream objectOutput) throws IOException {
+        objectOutput.writeInt(MSG_PULL);
+        objectOutput.writeInt(this.nodeId);
+    }
+    
+    /**
+     * Write the ADD records of the buckets that differ from a peer's digest.
+     * Called by the peer when the message goes out.
+     * @param objectOutput
+     * @param records
+     * @throws IOException
+     */
+    void writeBuckets(ObjectOutputStream objectOutput,
+            HashSet<EventRecord> records) throws IOException {
+        objectOutput.writeInt(MSG_BUCKETS);
+        WuuCodec.writeEvents(objectOutput, records);
+        objectOutput.writeInt(this.nodeId);
+    }
 
     /**
      * Communicative method.
      * Case A: Wuu & Bernstein: Receives <NP, T> from sender node. Update NE, 
      *      dictionary V, T, and PL.
-     * Case B: Initiator of the appointment receives the conflict message. It 
-     *      deletes the appointment as if explicitly cancels the appointment.
+     * Case B: Anti-entropy digest, answered with the differing buckets.
+     * Case C: Anti-entropy buckets, merged like NP without a time table.
+     * Case D: Gossip pull, answered with a <NP, T> shipment.
      * @param clientSocket 
      */
     public void receive(Socket clientSocket) {
-        Set<EventRecord> NPk = null;
-        int[][] Tk = null;
-        Appointment deletedAppt = null;
-        int senderNode = -1;
-        int message = -1;
-
-        
+        // A peer keeps its connection open, read until it closes it
         try {
             InputStream in = clientSocket.getInputStream();
             ObjectInputStream objectInput = new ObjectInputStream(in);
-            message = objectInput.readInt();
-            
-            switch (message) {
-                case MSG_SEND_LOG:
-                    //System.out.println("abc");
-                    NPk = (HashSet<EventRecord>)objectInput.readObject();
-                    /*for(EventRecord er : NPk) {
-                        System.out.println(er.getOperation());
-                    }*/
-                    Tk = (int[][])objectInput.readObject();
-                    break;
-                    
-                case MSG_DELETE_CONFLICT:
-                    deletedAppt = (Appointment)objectInput.readObject();
-                    break;
-                    
-                default:
-                    break;
+            // T of the sender as received so far on this connection
+            int[][] receivedTable = new int[numNodes][numNodes];
+            while (true) {
+                Set<EventRecord> NPk = null;
+                int[][] Tk = null;
+                int[] digest = null;
+                int message = objectInput.readInt();
+                
+                switch (message) {
+                    case MSG_SEND_LOG:
+                        NPk = WuuCodec.readEvents(objectInput);
+                        Tk = WuuCodec.readTable(objectInput, receivedTable);
+                        break;
+                        
+                    case MSG_DIGEST:
+                        digest = (int[])objectInput.readObject();
+                        break;
+                        
+                    case MSG_BUCKETS:
+                        NPk = WuuCodec.readEvents(objectInput);
+                        break;
+                        
+                    default:
+                        break;
+                }
+                
+                int senderNode = objectInput.readInt();
+                handleMessage(message, NPk, Tk, digest, senderNode);
             }
-            
-            senderNode = objectInput.readInt();
-            objectInput.close();
-            in.close();
+        }
+        catch (EOFException e) {
+            // The peer closed the connection
         }
         catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
-        
+        finally {
+            try {
+                clientSocket.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Handle one message read by receive.
+     */
+    private void handleMessage(int message, Set<EventRecord> NPk, int[][] Tk,
+            int[] digest, int senderNode) {
         switch (message) {
             case MSG_SEND_LOG:
+            case MSG_BUCKETS:
                 if (NPk != null) {
+                    // Sort outside the lock, the merge then only does lookups
+                    List<EventRecord> received = inClockOrder(NPk);
+                    long seq;
                     synchronized(lock) {
                         // Update NE
                         NE.clear();
-                        for (EventRecord fR:NPk) {
+                        List<EventRecord> newEvents = new ArrayList<>();
+                        for (EventRecord fR:received) {
                             if (!hasRec(this.T, fR, this.nodeId)) {
                                 NE.add(fR);
+                                newEvents.add(fR);
                             }
                         }
                         // Update the dictionary, calendar and log
-                        for  (EventRecord er:NE) {
+                        for  (EventRecord er:newEvents) {
                             addToLog(er);
                         }
-                        
-                        // 1) Check events in NE that to be deleted
-                        HashSet<String> deleteApptIds = new HashSet<>();
-                        for (String apptId:currentAppts.keySet()) {
-                            for (EventRecord dR:NE) {
-                                if (dR.getAppointment().getId().equals(apptId) &&dR.getOperation().equals(EventOperation.DELETE)) {
-                                    deleteApptIds.add(apptId);
-                                    // Update calendar
-                                    int startIndex = dR.getAppointment().getStartTime();
-                                    int endIndex = dR.getAppointment().getEndTime();
-                                    int dayIndex = dR.getAppointment().getDay();
-                                    for (Integer participant:dR.getAppointment().getParticipantsId()) {
-                                        for (int i = startIndex; i < endIndex; i++) {
-                                            this.calendar[participant][dayIndex][i] = CALENDAR_VACANT;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        // Update dicionary
-                        for (String apptId:deleteApptIds) {
-                            currentAppts.remove(apptId);
-                        }
-                        
-                        // 2) Check events in NE that to be inserted into dictionary
-                        for (EventRecord er:NE) {
-                            boolean deletionExists = false;
-                            if (er.getOperation().equals(EventOperation.ADD)) {
-                                Appointment newAppt = er.getAppointment();
-                                // If there is any delete operations on this appointment, do not add
-                                for (EventRecord dR:NE) {
-                                    if (dR.getAppointment().getId().equals(newAppt.getId()) &&
-                                        dR.getOperation().equals(EventOperation.DELETE)) {
-                                        deletionExists = true;
-                                    }
-                                }
-                                if (!deletionExists) {
-                                    int startIndex = newAppt.getStartTime();
-                                    int endIndex = newAppt.getEndTime();
-                                    int dayIndex = newAppt.getDay();
-                                    // This node is a participant. Check time conflict first.
-                                    if (newAppt.getParticipantsId().contains(this.nodeId)) {
-                                        boolean conflict = false;
-                                        for (int t = startIndex; t < endIndex; t++) {
-                                            if (this.calendar[this.nodeId][dayIndex][t] != CALENDAR_VACANT) {
-                                                conflict = true;
-                                            }
-                                        }
-                                        if (conflict) {
-                                            System.out.println("The new appointment conflicts with my schedule.");
-                                            // Notify senderNode that this appointment needs to be cancelled
-                                            send(senderNode, newAppt, MSG_DELETE_CONFLICT);
-                                            send(senderNode, newAppt, MSG_SEND_LOG);
-                                        }
-                                        else {
-                                            // Update local dictionary and calendar
-                                            currentAppts.put(newAppt.getId(), newAppt);
-                                            for (int participant:newAppt.getParticipantsId()) {
-                                                for (int t = startIndex; t < endIndex; t++) {
-                                                    this.calendar[participant][dayIndex][t] = newAppt.getId();
-                                                }
-                                            }
-                                        }
-                                    }
-                                    // This node is not a participant. Update local dicionary and calendar. No need to check conflict.
-                                    else {
-                                        currentAppts.put(newAppt.getId(), newAppt);
-                                        for (int participant:newAppt.getParticipantsId()) {
-                                            for (int t = startIndex; t < endIndex; t++) {
-                                                this.calendar[participant][dayIndex][t] = newAppt.getId();
-                                            }
-                                        }
-                                    }
-                                }
-                            }
+                        WuuJournal.Delta delta = new WuuJournal.Delta(this.clock, this.apptNo);
+                        for (EventRecord er:newEvents) {
+                            delta.addEvent(er);
                         }
+                        merge(newEvents);
                         
-                        // Update T
-                        for (int r = 0; r < numNodes; r++) {
-                            this.T[this.nodeId][r] = Math.max(this.T[this.nodeId][r], Tk[senderNode][r]);
-                        }
-                        for (int r = 0; r < numNodes; r++) {
-                            for (int s = 0; s < numNodes; s++) {
-                                this.T[r][s] = Math.max(this.T[r][s], Tk[r][s]);
-                            }
+                        // Update T. Buckets come without one: their events
+                        // are not a prefix of what the sender knows.
+                        if (Tk != null) {
+                            mergeTable(Tk, senderNode);
+                            delta.setTable(Tk, senderNode);
                         }
                         
-                        // Update PL
-                        HashSet<EventRecord> removePL = new HashSet<>();
-                        for (EventRecord eR:PL){
-                            boolean remove = true;
-                            for (int s = 0; s < numNodes; s++){
-                                if (!hasRec(T, eR, s)){
-                                    remove = false;
-                                }
-                            }
-                            if (remove)
-                                removePL.add(eR);
-                        }
-
-                        for (EventRecord eR:removePL) {
-                            PL.remove(eR);
-                        }
-
-                        for (EventRecord eR:NE){
-                            for (int s = 0; s < numNodes; s++){
-                                if (!hasRec(T, eR, s)) {
-                                    PL.add(eR);
-                                }
-                            }
-                        }
+                        // Update PL: keep the new events some node lacks
+                        PL.addAll(newEvents);
+                        PL.removeKnownToAll(T);
+                        collectStableEvents();
                         
-                        saveNodeState();
+                        seq = logDelta(delta);
                     }
+                    syncJournal(seq);
+                    deleteLosers();
                 }   
                 break;
                 
-            // This node sent new appt to the senderNode. Then the senderNode 
-            // found conflict in its schedule. This node should delete this appt, 
-            // and notify all the participants.
-            case MSG_DELETE_CONFLICT:
-                if (deletedAppt != null) {
-                    deleteAppointment(deletedAppt.getId());
+            case MSG_PULL:
+                send(senderNode, null, MSG_SEND_LOG);
+                break;
+                
+            // The sender lacks the appointments of the buckets that differ,
+            // or has ones deleted here. Send the ADD records of ours; the
+            // sender skips the ones it has already learned.
+            case MSG_DIGEST:
+                if (digest != null) {
+                    int[] own = digest();
+                    HashSet<EventRecord> records = new HashSet<>();
+                    synchronized(lock) {
+                        for (EventRecord er:apptRecords.values()) {
+                            Appointment appt = er.getAppointment();
+                            for (int participant:appt.getParticipantsId()) {
+                                int bucket = appt.getDay() * numNodes + participant;
+                                if (own[bucket] != digest[bucket]) {
+                                    records.add(er);
+                                }
+                            }
+                        }
+                    }
+                    if (!records.isEmpty()) {
+                        peers[senderNode].sendBuckets(records);
+                    }
                 }
                 break;
                 
@@ -506,23 +668,315 @@ public class WuuNode {
         }
     }
     
+    /**
+     * Apply the new events of a received NP to the ADD records, then resolve
+     * the days they touch. An appointment deleted by any of them is removed,
+     * and its ADD, if among them or received later, is skipped: anti-entropy
+     * buckets carry ADDs without advancing T. Caller must hold lock.
+     * @param newEvents events of NE, in clock order
+     */
+    private void merge(List<EventRecord> newEvents) {
+        HashSet<Integer> days = new HashSet<>();
+        // 1) Deletes, one hash lookup each
+        for (EventRecord dR:newEvents) {
+            if (dR.getOperation().equals(EventOperation.DELETE)) {
+                deletedIds.put(dR.getAppointment().getId(), dR);
+                removeRecord(dR.getAppointment().getId());
+                days.add(dR.getAppointment().getDay());
+            }
+        }
+
+        // 2) Adds of appointments never deleted
+        for (EventRecord er:newEvents) {
+            if (er.getOperation().equals(EventOperation.ADD) &&
+                    !deletedIds.containsKey(er.getAppointment().getId()) &&
+                    !apptRecords.containsKey(er.getAppointment().getId())) {
+                putRecord(er);
+                days.add(er.getAppointment().getDay());
+            }
+        }
+        resolveDays(days);
+    }
+
+    /**
+     * Merge received events like a <NP, T> without T: the ones not yet
+     * known are applied in clock order. Neither logged nor journaled, for
+     * WuuMergeBenchmark.
+     * @param NPk
+     * @return number of appointments shown afterwards
+     */
+    int mergeReceived(Collection<EventRecord> NPk) {
+        List<EventRecord> received = inClockOrder(NPk);
+        synchronized(lock) {
+            List<EventRecord> newEvents = new ArrayList<>();
+            for (EventRecord fR:received) {
+                if (!hasRec(this.T, fR, this.nodeId)) {
+                    newEvents.add(fR);
+                }
+            }
+            merge(newEvents);
+            return currentAppts.size();
+        }
+    }
+
+    /**
+     * Recompute the dictionary and calendar of every day. For
+     * WuuMergeBenchmark.
+     * @return number of appointments shown afterwards
+     */
+    int resolveAllDays() {
+        HashSet<Integer> days = new HashSet<>();
+        for (int day = 0; day < CALENDAR_DAYS; day++) {
+            days.add(day);
+        }
+        synchronized(lock) {
+            resolveDays(days);
+            return currentAppts.size();
+        }
+    }
+
+    /**
+     * Recompute the dictionary and calendar of the given days from the ADD
+     * records: in (clock, node ID) order, an appointment is shown unless it
+     * overlaps one already shown. Conflicts are thus resolved the same way
+     * on every replica, without messages. Only the records and
+     * appointments of the given days are visited. Caller must hold lock.
+     * @param days
+     */
+    private void resolveDays(Set<Integer> days) {
+        for (int day:days) {
+            HashSet<String> shownBefore = shownByDay.remove(day);
+            if (shownBefore == null) {
+                shownBefore = new HashSet<>();
+            }
+            for (String apptId:shownBefore) {
+                markCalendar(currentAppts.remove(apptId), CALENDAR_VACANT);
+            }
+
+            HashMap<String, EventRecord> adds = recordsByDay.get(day);
+            if (adds == null) {
+                continue;
+            }
+            for (EventRecord er:inClockOrder(adds.values())) {
+                Appointment appt = er.getAppointment();
+                boolean free = true;
+                for (int participant:appt.getParticipantsId()) {
+                    for (int t = appt.getStartTime(); t < appt.getEndTime(); t++) {
+                        if (this.calendar[participant][day][t] != CALENDAR_VACANT) {
+                            free = false;
+                        }
+                    }
+                }
+                if (free) {
+                    currentAppts.put(appt.getId(), appt);
+                    shownByDay.computeIfAbsent(day, d -> new HashSet<>())
+                            .add(appt.getId());
+                    markCalendar(appt, appt.getId());
+                }
+                else {
+                    if (er.getERNodeId() == this.nodeId) {
+                        ownLosers.add(appt.getId());
+                    }
+                    if (shownBefore.contains(appt.getId()) &&
+                            appt.getParticipantsId().contains(this.nodeId)) {
+                        System.out.println("Appointment \"" + appt.getName() +
+                                "\" removed, it conflicts with an earlier one");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep an ADD record, indexed by its day. Caller must hold lock.
+     * @param er
+     */
+    private void putRecord(EventRecord er) {
+        Appointment appt = er.getAppointment();
+        apptRecords.put(appt.getId(), er);
+        recordsByDay.computeIfAbsent(appt.getDay(), d -> new HashMap<>())
+                .put(appt.getId(), er);
+    }
+
+    /**
+     * Drop the ADD record of an appointment, if kept. Caller must hold lock.
+     * @param apptId
+     */
+    private void removeRecord(String apptId) {
+        EventRecord er = apptRecords.remove(apptId);
+        if (er != null) {
+            recordsByDay.get(er.getAppointment().getDay()).remove(apptId);
+        }
+    }
+
+    /**
+     * Rebuild the by-day indexes from apptRecords and currentAppts, which
+     * are saved without them, when the state is restored.
+     */
+    private void indexByDay() {
+        recordsByDay.clear();
+        shownByDay.clear();
+        for (EventRecord er:apptRecords.values()) {
+            Appointment appt = er.getAppointment();
+            recordsByDay.computeIfAbsent(appt.getDay(), d -> new HashMap<>())
+                    .put(appt.getId(), er);
+        }
+        for (Appointment appt:currentAppts.values()) {
+            shownByDay.computeIfAbsent(appt.getDay(), d -> new HashSet<>())
+                    .add(appt.getId());
+        }
+    }
+
+    /**
+     * Log a DELETE for each appointment of this node that lost to an
+     * earlier one and is still hidden, and send it to its participants.
+     * Otherwise its ADD record would stay on every replica, hidden but
+     * impossible to delete, and show up again once the winner is deleted.
+     */
+    private void deleteLosers() {
+        List<Appointment> deleted = new ArrayList<>();
+        long seq = 0;
+        synchronized(lock) {
+            for (String apptId:new ArrayList<>(ownLosers)) {
+                ownLosers.remove(apptId);
+                EventRecord er = apptRecords.get(apptId);
+                if (er == null || currentAppts.containsKey(apptId)) {
+                    // Deleted meanwhile, or shown again
+                    continue;
+                }
+                deleted.add(er.getAppointment());
+                seq = logDelete(er.getAppointment());
+            }
+        }
+        if (deleted.isEmpty()) {
+            return;
+        }
+        // The deltas are synced in order, the last one covers the others
+        syncJournal(seq);
+        for (Appointment loser:deleted) {
+            for (int participant:loser.getParticipantsId()) {
+                if (participant != this.nodeId) {
+                    send(participant, loser, MSG_SEND_LOG);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the time table Tk received from senderNode into T.
+     * Caller must hold lock.
+     * @param Tk
+     * @param senderNode
+     */
+    private void mergeTable(int[][] Tk, int senderNode) {
+        for (int r = 0; r < numNodes; r++) {
+            this.T[this.nodeId][r] = Math.max(this.T[this.nodeId][r], Tk[senderNode][r]);
+        }
+        for (int r = 0; r < numNodes; r++) {
+            for (int s = 0; s < numNodes; s++) {
+                this.T[r][s] = Math.max(this.T[r][s], Tk[r][s]);
+            }
+        }
+    }
+
+    /**
+     * Set the slots of appt in the calendars of its participants.
+     * @param appt
+     * @param value appointment ID, or CALENDAR_VACANT
+     */
+    private void markCalendar(Appointment appt, String value) {
+        for (int participant:appt.getParticipantsId()) {
+            for (int t = appt.getStartTime(); t < appt.getEndTime(); t++) {
+                this.calendar[participant][appt.getDay()][t] = value;
+            }
+        }
+    }
+
+    /**
+     * @param eRs
+     * @return eRs sorted by (clock, node ID), so that the events of every
+     *      node are applied in the order they happened
+     */
+    private static List<EventRecord> inClockOrder(Collection<EventRecord> eRs) {
+        List<EventRecord> result = new ArrayList<>(eRs);
+        result.sort(Comparator.comparingInt(EventRecord::getERClock)
+                .thenComparingInt(EventRecord::getERNodeId));
+        return result;
+    }
+
     /**
      * Add the event record to the log.
      * @param eR the EventRecord to be added to the log
      */
     private void addToLog(EventRecord eR) {
-        if (!this.log.contains(eR)) {
-            this.log.add(eR);
+        synchronized(lock) {
+            this.log.putIfAbsent(eR.getKey(), eR);
         }
     }
+
+    /**
+     * Drop the causally stable events from the log: the ones every node has
+     * learned, hasRec(T, eR, s) for all s. The IDs of appointments whose
+     * DELETE is stable are forgotten too. Caller must hold lock.
+     */
+    private void collectStableEvents() {
+        int[] stable = new int[numNodes];
+        for (int j = 0; j < numNodes; j++) {
+            stable[j] = Integer.MAX_VALUE;
+            for (int s = 0; s < numNodes; s++) {
+                stable[j] = Math.min(stable[j], this.T[s][j]);
+            }
+        }
+        this.log.values().removeIf(eR -> eR.getERClock() <= stable[eR.getERNodeId()]);
+        // No node keeps the ADD of a stable DELETE, and T already covers
+        // the ADD on every node, which skips it if it comes again
+        this.deletedIds.values().removeIf(dR -> dR != null &&
+                dR.getERClock() <= stable[dR.getERNodeId()]);
+
+        // Own events that just became stable have converged
+        long now = System.currentTimeMillis();
+        Map<Integer, Long> converged = createdAt.headMap(stable[this.nodeId], true);
+        for (long created:converged.values()) {
+            WireStats.recordWuuConvergence(now - created);
+        }
+        converged.clear();
+    }
     
     /**
-     * Save node state for recovering from failure.
+     * Append the changes of an operation to the journal, and queue a
+     * checkpoint every WUU_CHECKPOINT_INTERVAL operations.
+     * Caller must hold lock, then sync the journal after releasing it.
+     * @param delta
+     * @return sequence number to sync
+     */
+    private long logDelta(WuuJournal.Delta delta) {
+        long seq = journal.append(delta);
+        if (journal.wantsCheckpoint()) {
+            journal.checkpoint(snapshotNodeState());
+        }
+        return seq;
+    }
+
+    /**
+     * Wait until the journal has handled a delta, and tell the user when it
+     * could not be written.
+     * @param seq
+     */
+    private void syncJournal(long seq) {
+        if (!journal.sync(seq)) {
+            System.out.println("Warning: cannot write the journal, recent " +
+                    "changes are lost if this node crashes");
+        }
+    }
+
+    /**
+     * Serialize the node state for a checkpoint.
+     * @return
      */
-    private void saveNodeState() {
+    private byte[] snapshotNodeState() {
         try {
-            FileOutputStream fos = new FileOutputStream(nodeStateFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
             synchronized(lock) {
                 oos.writeObject(this.clock);
                 oos.writeObject(this.calendar);
@@ -532,39 +986,102 @@ public class WuuNode {
                 oos.writeObject(this.NE);
                 oos.writeObject(this.currentAppts);
                 oos.writeObject(this.apptNo);
+                oos.writeObject(this.apptRecords);
+                oos.writeObject(this.deletedIds);
             }
-                oos.close();
+            oos.close();
+            return bytes.toByteArray();
         }
         catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException("Cannot serialize node state " + e);
         }
     }
-    
+
     /**
-     * Restore node state for recovering from failure.
+     * Restore node state for recovering from failure: the last checkpoint,
+     * or the state file written before the journal existed, then the
+     * journal. The result becomes the new checkpoint.
      */
+    // The checkpoint is only written by snapshotNodeState, whose fields
+    // have these collection types; serialization cannot check them
+    @SuppressWarnings("unchecked")
     private void restoreNodeState() {
         try {
-            FileInputStream fis = new FileInputStream(nodeStateFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            this.clock = (int) ois.readObject();
-            this.calendar = (String[][][]) ois.readObject();
-            this.T = (int[][]) ois.readObject();
-            this.PL = (Set<EventRecord>) ois.readObject();
-            this.NP = (Set<EventRecord>) ois.readObject();
-            this.NE = (Set<EventRecord>) ois.readObject();
-            this.currentAppts = (HashMap<String, Appointment>) ois.readObject();
-            this.apptNo = (int) ois.readObject();
-        }
-
-        catch (FileNotFoundException fnfe) {
-            saveNodeState();
+            byte[] checkpoint = journal.readCheckpoint();
+            if (checkpoint == null && new File(nodeStateFile).exists()) {
+                checkpoint = java.nio.file.Files.readAllBytes(
+                        new File(nodeStateFile).toPath());
+            }
+            if (checkpoint != null) {
+                ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(checkpoint));
+                this.clock = (int) ois.readObject();
+                this.calendar = (String[][][]) ois.readObject();
+                this.T = (int[][]) ois.readObject();
+                Object savedPL = ois.readObject();
+                if (savedPL instanceof PartialLog) {
+                    this.PL = (PartialLog) savedPL;
+                }
+                else {
+                    // State saved before PL was indexed
+                    this.PL = new PartialLog(numNodes);
+                    this.PL.addAll((Set<EventRecord>) savedPL);
+                }
+                this.NP = (Set<EventRecord>) ois.readObject();
+                this.NE = (Set<EventRecord>) ois.readObject();
+                this.currentAppts = (HashMap<String, Appointment>) ois.readObject();
+                this.apptNo = (int) ois.readObject();
+                try {
+                    this.apptRecords = (HashMap<String, EventRecord>) ois.readObject();
+                    Object savedDeleted = ois.readObject();
+                    if (savedDeleted instanceof HashMap) {
+                        this.deletedIds = (HashMap<String, EventRecord>) savedDeleted;
+                    }
+                    else {
+                        // Saved before deletes were collected: without
+                        // their records the IDs are kept for good
+                        for (String apptId:(HashSet<String>) savedDeleted) {
+                            this.deletedIds.put(apptId, null);
+                        }
+                    }
+                }
+                catch (EOFException | OptionalDataException e) {
+                    // State saved before anti-entropy, its appointments
+                    // are not offered to peers, or before deletes were
+                    // remembered: the journal and later deletes refill them
+                }
+            }
+            indexByDay();
+            for (WuuJournal.Delta delta:journal.replay()) {
+                replayDelta(delta);
+            }
+            journal.compact(snapshotNodeState());
         }
-
         catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Apply a journaled delta during recovery.
+     * @param delta
+     */
+    private void replayDelta(WuuJournal.Delta delta) {
+        for (EventRecord eR:delta.getEvents()) {
+            addToLog(eR);
+            PL.add(eR);
+        }
+        merge(delta.getEvents());
+        this.clock = Math.max(this.clock, delta.getClock());
+        this.T[this.nodeId][this.nodeId] = Math.max(
+                this.T[this.nodeId][this.nodeId], this.clock);
+        this.apptNo = Math.max(this.apptNo, delta.getApptNo());
+        if (delta.getTable() != null) {
+            mergeTable(delta.getTable(), delta.getSender());
+        }
+        PL.removeKnownToAll(T);
+        collectStableEvents();
+    }
     
     public String[][][] getCalendar() {
         return this.calendar;
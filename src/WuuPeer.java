@@ -0,0 +1,250 @@
+/**
+ * WuuPeer class: outbound queue and connection of a WuuNode to one peer.
+ * Messages to the peer go over a single connection that is kept open and
+ * reopened with exponential backoff when it breaks, straight at the longest
+ * backoff while the failure detector reports the peer down. Log shipments are
+ * coalesced: the queue holds at most one, and its <NP, T> is built when it
+ * is written, so it covers every event still unsent at that time. The same
+ * holds for gossip pulls and anti-entropy digests. Anti-entropy bucket
+ * replies are queued in order between them.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class WuuPeer extends Thread {
+    private final static Logger LG = Logger.getLogger(
+            WuuPeer.class.getName());
+
+    /* Queue items built when written: a <NP, T> shipment, a pull, a digest */
+    private static final Object LOG_SHIPMENT = new Object();
+    private static final Object PULL = new Object();
+    private static final Object DIGEST = new Object();
+
+    private WuuNode node;
+    private int peerId;
+    private String host;
+    private int port;
+    /* LOG_SHIPMENT, PULL, DIGEST or the BucketReply of a digest */
+    private final LinkedList<Object> queue;
+    private final Lock queueLock;
+    private final Condition queueNotEmpty;
+
+    private Socket socket;
+    private CountingOutputStream counter;
+    private ObjectOutputStream objOut;
+    /* T as last written on the current connection */
+    private int[][] sentTable;
+    private volatile boolean reachable;
+
+    /* Constructor */
+    public WuuPeer(WuuNode node_obj, int peer_id, String peer_host,
+                   int peer_port) {
+        node = node_obj;
+        peerId = peer_id;
+        host = peer_host;
+        port = peer_port;
+        queue = new LinkedList<>();
+        queueLock = new ReentrantLock();
+        queueNotEmpty = queueLock.newCondition();
+        reachable = true;
+        setDaemon(true);
+
+        LG.setLevel(Constants.GLOBAL_LOG_LEVEL);
+    }
+
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    /**
+     * shipLog: queue a <NP, T> shipment unless one is already pending
+     */
+    public void shipLog() {
+        enqueueOnce(LOG_SHIPMENT);
+    }
+
+    /**
+     * pull: ask the peer for its <NP, T> unless a request is already pending
+     */
+    public void pull() {
+        enqueueOnce(PULL);
+    }
+
+    /**
+     * sendDigest: queue an anti-entropy digest unless one is already pending
+     */
+    public void sendDigest() {
+        enqueueOnce(DIGEST);
+    }
+
+    /**
+     * sendBuckets: queue the ADD records that answer a digest of the peer
+     * @param records
+     */
+    public void sendBuckets(HashSet<EventRecord> records) {
+        queueLock.lock();
+        queue.add(new BucketReply(records));
+        queueNotEmpty.signal();
+        queueLock.unlock();
+    }
+
+    /**
+     * run: write the queued messages in order. A shipment is taken off the
+     * queue before <NP, T> is built, so a later shipLog queues a new one.
+     */
+    public void run() {
+        int backoff = Constants.WUU_RECONNECT_INITIAL_BACKOFF;
+        while (true) {
+            Object item;
+            queueLock.lock();
+            try {
+                while (queue.isEmpty()) {
+                    queueNotEmpty.await();
+                }
+                item = queue.poll();
+            } catch (InterruptedException e) {
+                LG.warning("WuuPeer interrupted, exit");
+                return;
+            } finally {
+                queueLock.unlock();
+            }
+
+            try {
+                if (objOut == null) {
+                    socket = new Socket(host, port);
+                    counter = new CountingOutputStream(
+                            socket.getOutputStream());
+                    objOut = new ObjectOutputStream(new BufferedOutputStream(
+                            counter));
+                    /* The receiver starts from an empty table too */
+                    sentTable = new int[Constants.TOTAL_NODES]
+                            [Constants.TOTAL_NODES];
+                }
+                long before = counter.getCount();
+                String kind;
+                if (item == LOG_SHIPMENT) {
+                    kind = "log";
+                    if (!node.writeLog(objOut, peerId, sentTable)) {
+                        /* The peer already has everything */
+                        continue;
+                    }
+                } else if (item == PULL) {
+                    kind = "pull";
+                    node.writePull(objOut);
+                } else if (item == DIGEST) {
+                    kind = "digest";
+                    node.writeDigest(objOut);
+                } else {
+                    kind = "buckets";
+                    node.writeBuckets(objOut, ((BucketReply) item).records);
+                }
+                /* Later messages must not refer back to these objects */
+                objOut.reset();
+                objOut.flush();
+                WireStats.recordWuuSent(kind,
+                        (int) (counter.getCount() - before));
+            } catch (IOException e) {
+                LG.info("Cannot reach node " + peerId + ", retry in " +
+                        backoff + " ms: " + e);
+                reachable = false;
+                close();
+                queueLock.lock();
+                if (!isBuiltWhenWritten(item) || !queue.contains(item)) {
+                    queue.addFirst(item);
+                }
+                queueLock.unlock();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    LG.warning("WuuPeer interrupted, exit");
+                    return;
+                }
+                /* A peer reported down is still tried, just seldom */
+                backoff = FailureDetector.isDead(peerId) ?
+                        Constants.WUU_RECONNECT_MAX_BACKOFF :
+                        Math.min(backoff * 2,
+                                Constants.WUU_RECONNECT_MAX_BACKOFF);
+                continue;
+            }
+            reachable = true;
+            backoff = Constants.WUU_RECONNECT_INITIAL_BACKOFF;
+        }
+    }
+
+    /** Helper functions **/
+
+    private static boolean isBuiltWhenWritten(Object item) {
+        return item == LOG_SHIPMENT || item == PULL || item == DIGEST;
+    }
+
+    private void enqueueOnce(Object item) {
+        queueLock.lock();
+        if (!queue.contains(item)) {
+            queue.add(item);
+            queueNotEmpty.signal();
+        }
+        queueLock.unlock();
+    }
+
+    private void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            LG.fine("Cannot close connection to node " + peerId + " " + e);
+        }
+        socket = null;
+        counter = null;
+        objOut = null;
+    }
+
+    /**
+     * BucketReply class: queue item holding the ADD records of a reply
+     */
+    private static class BucketReply {
+        private final HashSet<EventRecord> records;
+
+        public BucketReply(HashSet<EventRecord> r) {
+            records = r;
+        }
+    }
+
+    /**
+     * CountingOutputStream class: counts the bytes written to the socket
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}